@@ -1,84 +1,155 @@
 package app;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.BinaryOperator;
 
 import app.Op.Exit;
-import app.Parser.Prog;
+import app.Val.BOOL;
 
 class Abstract extends Concrete {
     protected State[] astates;
     protected State init;
-    protected boolean done = false;
-    protected Set<Integer> pcs = new HashSet<Integer>();
-    protected Set<Integer> seens = new HashSet<Integer>();
+    protected BitSet pending = new BitSet(); // rpo numbers of the pcs to process
+    protected BitSet seen = new BitSet(); // pcs that have received a state
+    protected int[] rpo; // pcs in reverse postorder of the control flow graph
+    protected int[] order; // position of each pc in rpo
+    protected BitSet loopHeads = new BitSet(); // targets of back edges, where we widen
+    protected State[] narrowed; // receives merges during the narrowing step
+    protected int[] frameSizes; // register count of the function owning each pc
+    protected int[] exits; // pc of the Exit of the function entered at each Entry
+    private Val[] argBuf = new Val[8]; // arguments of the call being analysed
 
-    Abstract(Prog p) {
-        super(p);
-        astates = new State[Op.length()];
+    Abstract(CodeUnit code) {
+        super(code);
+        frameSizes = new int[code.length()];
+        var size = 0;
+        for (int i = 0; i < frameSizes.length; i++)
+            frameSizes[i] = size = code.get(i) instanceof Op.Entry e ? e.frameSize : size;
+        exits = new int[code.length()];
+        for (int i = 0, entry = 0; i < exits.length; i++)
+            if (code.get(i) instanceof Op.Entry)
+                entry = i;
+            else if (code.get(i) instanceof Exit)
+                exits[entry] = i;
+        astates = new State[code.length()];
         for (int i = 0; i < astates.length; i++)
             astates[i] = new State(i);
         init = new State(mainEntryPC);
+        computeOrder();
     }
 
-    // add pc to the program counters that have to be processed
-    private void toSee(int pc) {
-        if (!seens.contains(pc)) {
-            pcs.add(pc);
-            seens.add(pc);
+    // Number the pcs in reverse postorder with a depth first walk from main,
+    // then from functions and code that main doesn't reach.
+    private void computeOrder() {
+        var n = code.length();
+        var succs = new int[n][];
+        for (int pc = 0; pc < n; pc++)
+            succs[pc] = code.get(pc).succs(pc);
+        var post = new int[n];
+        var count = 0;
+        var visited = new boolean[n];
+        var stack = new int[n];
+        var nextSucc = new int[n];
+        for (int i = -1; i < n; i++) {
+            var root = i < 0 ? mainEntryPC : i;
+            if (visited[root])
+                continue;
+            visited[root] = true;
+            var sp = 0;
+            stack[sp++] = root;
+            while (sp > 0) {
+                var pc = stack[sp - 1];
+                if (nextSucc[pc] < succs[pc].length) {
+                    var s = succs[pc][nextSucc[pc]++];
+                    if (s < n && !visited[s]) {
+                        visited[s] = true;
+                        stack[sp++] = s;
+                    }
+                } else
+                    post[count++] = stack[--sp];
+            }
+        }
+        rpo = new int[n];
+        order = new int[n];
+        for (int i = 0; i < n; i++) {
+            rpo[i] = post[n - 1 - i];
+            order[rpo[i]] = i;
         }
+        for (int pc = 0; pc < n; pc++)
+            for (var s : succs[pc])
+                if (s < n && order[s] <= order[pc])
+                    loopHeads.set(s);
     }
 
-    // returns the next pc or the exit of main
+    // returns the pending pc that comes first in reverse postorder, or the
+    // exit of main when there is nothing left to do
     private int nextToSee() {
-        for (var i : pcs) {
-            pcs.remove(i);
-            return i;
-        }
-        return mainExitPC;// last nop before the instruction
+        var i = pending.nextSetBit(0);
+        if (i < 0)
+            return mainExitPC;
+        pending.clear(i);
+        return rpo[i];
     }
 
     // analyze the program and return the last state
     IState analyze() {
-        while (!done) {
-            var prev = astates.clone();
-            in = init;
-            execute(null);
-            done = equals(astates, prev);
-            seens = new HashSet<Integer>(); // reset the seen
-        }
+        mergeState(mainEntryPC, init);
+        in = astates[nextToSee()];
+        execute();
+        narrow();
         return astates[astates.length - 1];
     }
 
-    boolean equals(State[] l, State[] r) {
-        if (l.length != r.length)
-            return false;
-        for (int i = 0; i < l.length; i++)
-            if (!l[i].equals(r[i]))
-                return false;
-        return true;
+    // One decreasing step from the widened fixpoint: recompute every reached
+    // state from the current ones, then narrow the loop heads with the result
+    // and take it as is elsewhere.
+    private void narrow() {
+        narrowed = new State[astates.length];
+        for (int i = 0; i < narrowed.length; i++)
+            narrowed[i] = new State(i);
+        narrowed[mainEntryPC] = narrowed[mainEntryPC].merge(init);
+        for (var pc : rpo)
+            if (seen.get(pc) && pc != mainExitPC)
+                code.get(pc).exec(astates[pc]);
+        for (int pc = 0; pc < astates.length; pc++)
+            if (seen.get(pc))
+                astates[pc] = loopHeads.get(pc) ? astates[pc].narrow(narrowed[pc]) : narrowed[pc];
+        narrowed = null;
     }
 
+    // Merge st into the state at pc, widening at loop heads. The pc is
+    // (re)scheduled only when this is its first state or the merge changed it.
+    // The exit of main is never scheduled, reaching it ends the analysis.
     private void mergeState(int pc, State st) {
-        astates[pc] = astates[pc].merge(st);
-        toSee(pc);
+        if (narrowed != null) {
+            narrowed[pc] = narrowed[pc].merge(st);
+            return;
+        }
+        var old = astates[pc];
+        var merged = loopHeads.get(pc) ? old.widen(st) : old.merge(st);
+        if (seen.get(pc) && merged.equals(old) && merged.last.equals(old.last))
+            return;
+        astates[pc] = merged;
+        seen.set(pc);
+        if (pc != mainExitPC)
+            pending.set(order[pc]);
     }
 
     // Abstract State - keeps the topmost frame
     class State implements IState {
-        List<Val> values = new ArrayList<Val>();
+        Val[] values;
         Val last = Val.bot;
         int pc = -1;
 
         State(int pc) {
             this.pc = pc;
+            values = new Val[frameSizes[pc]];
+            Arrays.fill(values, Val.bot);
         }
 
         State(State st) {
-            for (var v : st.values)
-                values.add(v);
+            values = st.values.clone();
             last = st.last;
             pc = st.pc;
         }
@@ -87,51 +158,88 @@ class Abstract extends Concrete {
             return pc;
         }
 
-        public State next(int[] pcs_) {
-            for (var pc : pcs_)
-                mergeState(pc, this);
+        public State next() {
+            return jump(pc + 1);
+        }
+
+        public State jump(int target) {
+            mergeState(target, this);
+            return astates[nextToSee()];
+        }
+
+        public State branch(BOOL taken, int target, int other) {
+            if (taken != BOOL.Y)
+                mergeState(other, this);
+            if (taken != BOOL.N)
+                mergeState(target, this);
             return astates[nextToSee()];
         }
 
+        // after a call the caller continues with its state at the call site
+        // and the returned value in the target register
         public State pop(Val returnVal) {
-            var nm = Op.get(pc()) instanceof Exit e ? e.funName : null;
             last = returnVal;
-            for (int i = 0; i < astates.length; i++)
-                if (Op.get(i) instanceof Op.Call c && c.funName.equals(nm))
-                    mergeState(i + 1, new State(i + 1).set(c.targetRegister, last));
+            for (var site : ((Exit) code.get(pc())).callSites)
+                if (seen.get(site))
+                    mergeState(site + 1, astates[site].set(((Op.Call) code.get(site)).targetRegister, last));
             return astates[nextToSee()];
         }
 
-        public State push(int entryPC, List<Val> args) {
-            mergeState(entryPC, this);
+        // the callee's frame starts with the arguments in its first registers.
+        // Its exit only returns to the callers when the entry changes, so a
+        // caller whose other registers changed also continues at once with
+        // what the callee has returned so far.
+        public State push(int entryPC, Val[] args, int n) {
+            var st = new State(entryPC);
+            for (int i = 0; i < Math.min(n, st.values.length); i++)
+                st.values[i] = args[i];
+            mergeState(entryPC, st);
+            var exit = exits[entryPC];
+            if (seen.get(exit))
+                mergeState(pc + 1, set(((Op.Call) code.get(pc)).targetRegister, astates[exit].last));
             return astates[nextToSee()];
         }
 
-        // merges two States keeping the pc of the receiver
+        public Val[] args(int n) {
+            if (n > argBuf.length)
+                argBuf = new Val[Math.max(n, argBuf.length * 2)];
+            return argBuf;
+        }
+
+        // merges two States of the same function keeping the pc of the receiver
         State merge(IState state) {
-            var st = (State) state;
+            return combine((State) state, Val::merge);
+        }
+
+        State widen(State st) {
+            return combine(st, Val::widen);
+        }
+
+        // narrow this widened state with a state recomputed from it
+        State narrow(State st) {
+            return combine(st, Val::narrow);
+        }
+
+        private State combine(State st, BinaryOperator<Val> f) {
             var res = new State(pc);
-            res.last = Val.merge(last, st.last);
-            for (int i = 0; i < Math.max(values.size(), st.values.size()); i++)
-                res.values.add(i >= values.size() ? st.values.get(i)
-                        : i >= st.values.size() ? values.get(i) : Val.merge(values.get(i), st.values.get(i)));
+            res.last = f.apply(last, st.last);
+            for (int i = 0; i < res.values.length; i++)
+                res.values[i] = f.apply(values[i], st.values[i]);
             return res;
         }
 
-        // Hmm... this operation modifies the current state without copying...
-        // perhaps ok. but not pretty. What would be an alternative?
         public Val getRegister(int i) {
-            while (i >= values.size())
-                values.add(Val.bot);
-            return values.get(i);
+            return values[i];
+        }
+
+        public boolean canMutate(int i) {
+            return false;
         }
 
         public State set(int i, Val v) {
-            last = v;
             var res = new State(this);
-            while (i >= res.values.size())
-                res.values.add(Val.bot);
-            res.values.set(i, v);
+            res.last = v;
+            res.values[i] = v;
             return res;
         }
 
@@ -139,23 +247,20 @@ class Abstract extends Concrete {
             return last;
         }
 
+        // pop updates last in place, so hand out a copy
+        public State snapshot() {
+            return new State(this);
+        }
+
         public boolean equals(Object o) {
-            if (o instanceof State other && values.size() == other.values.size()) {
-                for (int i = 0; i < values.size(); i++)
-                    if (!values.get(i).equals(other.values.get(i)))
-                        return false;
-                return true;
-            }
-            return false;
+            return o instanceof State other && Arrays.equals(values, other.values);
         }
 
         public String toString() {
-            var res = "";
-            for (int i = 0; i < values.size(); i++)
-                res += i + "=" + values.get(i) + ",";
-            if (res.length() > 0)
-                res = res.substring(0, res.length() - 1);
-            return "State(" + res + ")";
+            var res = new StringBuilder("State(");
+            for (int i = 0; i < values.length; i++)
+                res.append(i > 0 ? "," : "").append(i).append('=').append(values[i]);
+            return res.append(')').toString();
         }
     }
 
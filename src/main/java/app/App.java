@@ -1,30 +1,59 @@
 package app;
 
 public class App {
+    // With no arguments run app.r through every engine. Otherwise
+    // App <dir|manifest> [limit] runs the scripts concurrently, with compiled
+    // programs cached in the directory named by -Drhotic.cache if it is set.
     public static void main(String[] a_) {
-        var m = new Parser("app.r");
-        var p = m.parse();
-        var c = new Concrete(p);
+        if (a_.length > 0) {
+            batch(a_);
+            return;
+        }
+        var code = new Compiler().compile(Lexer.of(java.nio.file.Path.of("app.r")));
+        var c = new Concrete(Specializer.specialize(Folder.fold(code)), true);
         p("Running concrete");
-        c.execute(null);
+        try (var t = new Tracer()) {
+            c.listener = t;
+            c.execute();
+        }
         p("Done with " + c.in.last());
-        var a = new Abstract(p);
+        var a = new Abstract(code);
         p("Running abstract");
-        var st = a.analyze();
+        IState st;
+        try (var t = new Tracer()) {
+            a.listener = t;
+            st = a.analyze();
+        }
         p("Done with " + st.last());
-        var d = new Dynamic(p);
+        var d = new Dynamic(code);
         p("Running dynamic");
-        d.execute(d);
+        try (var t = new Tracer()) {
+            d.trace = t;
+            d.execute();
+        }
         p("Done with " + d.astates[d.astates.length - 1].last());
     }
 
+    static void batch(String[] a_) {
+        var limit = a_.length > 1 ? Integer.parseInt(a_[1]) : Runtime.getRuntime().availableProcessors();
+        var t0 = System.nanoTime();
+        var dir = System.getProperty("rhotic.cache");
+        var cache = dir == null ? null : new CodeCache(java.nio.file.Path.of(dir));
+        var res = new Batch(limit, cache).run(Batch.scripts(java.nio.file.Path.of(a_[0])));
+        var failed = 0;
+        for (var r : res) {
+            p(r.toString());
+            if (!r.ok())
+                failed++;
+        }
+        p(res.size() + " scripts, " + failed + " failed, " + (System.nanoTime() - t0) / 1_000_000 + "ms");
+    }
+
     public static void p(String s) {
         System.out.println(s);
     }
 
     static String pad(String s, int pad) {
-        while (pad > s.length())
-            s += " ";
-        return s;
+        return pad > s.length() ? s + " ".repeat(pad - s.length()) : s;
     }
 }
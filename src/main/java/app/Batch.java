@@ -0,0 +1,120 @@
+package app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs many scripts in one JVM. Every script is parsed, compiled and run as
+// one task of a pool of limit platform threads, so at most limit of them are
+// in flight at any time. Compiled
+// programs share nothing, so scripts do not need to know about each other.
+class Batch {
+
+    record Result(Path script, Val value, Throwable error, long parseNs, long compileNs, long runNs) {
+        boolean ok() {
+            return error == null;
+        }
+
+        public String toString() {
+            var ms = String.format("%.2f/%.2f/%.2fms", parseNs / 1e6, compileNs / 1e6, runNs / 1e6);
+            return App.pad(script.toString(), 30) + " " + App.pad(ms, 24) + (ok() ? "" + value : "ERROR " + error);
+        }
+    }
+
+    private final int limit;
+    private final CodeCache cache; // null to always parse and compile
+
+    Batch(int limit) {
+        this(limit, null);
+    }
+
+    Batch(int limit, CodeCache cache) {
+        if (limit < 1)
+            throw new RuntimeException("batch limit must be positive");
+        this.limit = limit;
+        this.cache = cache;
+    }
+
+    // The .r files of a directory, or the scripts listed in a manifest (one
+    // path per line, relative to the manifest, # starts a comment)
+    static List<Path> scripts(Path p) {
+        try {
+            if (Files.isDirectory(p))
+                try (var s = Files.list(p)) {
+                    return s.filter(f -> f.toString().endsWith(".r")).sorted().toList();
+                }
+            var res = new ArrayList<Path>();
+            for (var ln : Files.readAllLines(p)) {
+                ln = ln.strip();
+                if (!ln.isEmpty() && !ln.startsWith("#"))
+                    res.add(p.resolveSibling(ln));
+            }
+            return res;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Results come back in the order of scripts, whatever order they ran in
+    List<Result> run(List<Path> scripts) {
+        var pool = threads();
+        try {
+            var futures = new ArrayList<Future<Result>>();
+            for (var s : scripts)
+                futures.add(pool.submit(() -> run(s)));
+            var res = new ArrayList<Result>();
+            for (var f : futures)
+                res.add(f.get());
+            return res;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // with a cache, loading the unit counts as compile time
+    Result run(Path script) {
+        long t0 = System.nanoTime(), t1 = 0, t2 = 0;
+        try {
+            CodeUnit code;
+            if (cache == null) {
+                var prog = Predictive.parse(script);
+                t1 = System.nanoTime();
+                code = new Compiler().compile(prog);
+            } else {
+                t1 = System.nanoTime();
+                code = cache.load(script);
+            }
+            t2 = System.nanoTime();
+            var v = new Concrete(code, true).execute().last();
+            return new Result(script, v, null, t1 - t0, t2 - t1, System.nanoTime() - t2);
+        } catch (Throwable e) {
+            if (e instanceof VirtualMachineError && !(e instanceof StackOverflowError))
+                throw e; // out of memory or a broken JVM ends the batch, a deep script only fails itself
+            // charge the time to the stage that failed
+            var t = System.nanoTime();
+            if (t1 == 0)
+                return new Result(script, null, e, t - t0, 0, 0);
+            if (t2 == 0)
+                return new Result(script, null, e, t1 - t0, t - t1, 0);
+            return new Result(script, null, e, t1 - t0, t2 - t1, t - t2);
+        }
+    }
+
+    // The build targets release 17 with preview features, whose class files
+    // only run on 17, so there are no virtual threads to use here
+    private ExecutorService threads() {
+        return Executors.newFixedThreadPool(limit, r -> {
+            var t = new Thread(r, "batch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package app;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Registry of builtin functions. A builtin has a name, an arity (-1 when
+// variadic), a concrete implementation and an abstract transfer function.
+// The Compiler resolves names to ids once, so ops never look at names.
+// Lookups take no lock: registering copies the array and publishes it.
+class Builtins {
+
+    interface Fn {
+        Val apply(Val[] args);
+    }
+
+    record Def(int id, String name, int arity, Fn concrete, Fn transfer) {
+    }
+
+    private static volatile Def[] defs = new Def[0];
+    private static final ConcurrentHashMap<String, Def> byName = new ConcurrentHashMap<>();
+
+    // ids of the builtins that have their own opcode in Op
+    static final int GET = 0, SET = 1, C = 2, ADD = 3, SUB = 4, LENGTH = 5;
+
+    static {
+        register("get", 2, a -> a[0].getVal(a[1]));
+        register("set", 3, a -> a[0].set(a[1], a[2]));
+        register("c", -1, a -> Val.of(List.of(a)));
+        register("add", 2, a -> a[0].add(a[1]));
+        register("sub", 2, a -> a[0].sub(a[1]));
+        register("length", 1, a -> a[0].size());
+        register("sort", 1, a -> a[0].sort());
+        register("max", 1, a -> a[0].max());
+    }
+
+    // Val operations handle both concrete and abstract values
+    static int register(String name, int arity, Fn fn) {
+        return register(name, arity, fn, fn);
+    }
+
+    static synchronized int register(String name, int arity, Fn concrete, Fn transfer) {
+        if (byName.containsKey(name))
+            throw new RuntimeException("builtin " + name + " already registered");
+        var def = new Def(defs.length, name, arity, concrete, transfer);
+        var ds = Arrays.copyOf(defs, defs.length + 1);
+        ds[def.id()] = def;
+        defs = ds; // before byName, so an id that can be found can be got
+        byName.put(name, def);
+        return def.id();
+    }
+
+    // id of the builtin called name, or -1 if there is none
+    static int id(String name) {
+        var def = byName.get(name);
+        return def == null ? -1 : def.id();
+    }
+
+    static Def get(int id) {
+        return defs[id];
+    }
+
+    // the names and arities of all builtins in id order, what compiled code
+    // depends on
+    static String signature() {
+        var s = new StringBuilder();
+        for (var d : defs)
+            s.append(d.name()).append('/').append(d.arity()).append(';');
+        return s.toString();
+    }
+}
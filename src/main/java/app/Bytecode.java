@@ -0,0 +1,280 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// A CodeUnit flattened into one int[] and run by a switch. Each instruction is
+// an opcode followed by its operands; jump targets are offsets in the array
+// and an argument is a register when >= 0 and pool entry -(a + 1) otherwise.
+//
+//   NOP | ENTRY size | EXIT | MAIN_EXIT | JUMP to | BRANCH guard to else
+//   CALL tgt entry n args... | C tgt n args... | INTRINSIC tgt id n args...
+//   GET, ADD, SUB tgt a b | SET tgt v i x | LENGTH, MOVE tgt a
+//   ADD_BRANCH, SUB_BRANCH tgt a b to else
+// and I versions of ADD, SUB, BRANCH, ADD_BRANCH and SUB_BRANCH for the ops
+// that the Specializer proved to work on int scalars.
+//
+// The interpreter keeps all frames in one register array, values are
+// reference counted as in MutableState so that set can update in place.
+class Bytecode {
+    static final int NOP = 0, ENTRY = 1, EXIT = 2, MAIN_EXIT = 3, JUMP = 4, BRANCH = 5, CALL = 6, C = 7,
+            INTRINSIC = 8, GET = 9, SET = 10, ADD = 11, SUB = 12, LENGTH = 13, MOVE = 14, ADD_BRANCH = 15,
+            SUB_BRANCH = 16, IADD = 17, ISUB = 18, IBRANCH = 19, IADD_BRANCH = 20, ISUB_BRANCH = 21;
+
+    private static final Val zero = Val.of(0);
+
+    final int[] code;
+    final Val[] pool;
+    private final int mainEntry;
+
+    Bytecode(CodeUnit unit) {
+        var at = new int[unit.length() + 1]; // offset of each pc
+        for (int pc = 0; pc < unit.length(); pc++)
+            at[pc + 1] = at[pc] + size(unit.get(pc));
+        var out = new int[at[unit.length()]];
+        var pool = new ArrayList<Val>();
+        var poolIdx = new HashMap<Val, Integer>();
+        for (int pc = 0; pc < unit.length(); pc++) {
+            var op = unit.get(pc);
+            var i = at[pc];
+            var fused = op instanceof Op.ArithBranch ab ? ab : null;
+            if (fused != null)
+                op = fused.arith; // encoded as the arith with the targets after it
+            if (op instanceof Op.Entry e) {
+                out[i] = ENTRY;
+                out[i + 1] = e.frameSize;
+            } else if (op instanceof Op.MainExit)
+                out[i] = MAIN_EXIT;
+            else if (op instanceof Op.Exit)
+                out[i] = EXIT;
+            else if (op instanceof Op.Jump j) {
+                out[i] = JUMP;
+                out[i + 1] = at[j.targetPc];
+            } else if (op instanceof Op.Branch b) {
+                out[i] = b instanceof Op.IntBranch ? IBRANCH : BRANCH;
+                out[i + 1] = b.guardRegister;
+                out[i + 2] = at[b.targetPc];
+                out[i + 3] = at[b.elsePc < 0 ? pc + 1 : b.elsePc];
+            } else if (op instanceof Op.Call c) {
+                var opcode = fused == null ? opcode(c)
+                        : c instanceof Op.AddOp ? ADD_BRANCH : c instanceof Op.SubOp ? SUB_BRANCH
+                        : c instanceof Op.IntAddOp ? IADD_BRANCH : ISUB_BRANCH;
+                out[i++] = opcode;
+                out[i++] = c.targetRegister;
+                if (opcode == CALL)
+                    out[i++] = at[c.entryPc];
+                else if (opcode == INTRINSIC)
+                    out[i++] = ((Op.Intrinsic) c).def.id();
+                if (opcode == CALL || opcode == C || opcode == INTRINSIC)
+                    out[i++] = c.args.size();
+                for (var a : c.args)
+                    if (a instanceof Integer r)
+                        out[i++] = r;
+                    else {
+                        var idx = poolIdx.get((Val) a);
+                        if (idx == null) {
+                            poolIdx.put((Val) a, idx = pool.size());
+                            pool.add((Val) a);
+                        }
+                        out[i++] = -(idx + 1);
+                    }
+                if (fused != null) {
+                    out[i++] = at[fused.targetPc];
+                    out[i++] = at[fused.elsePc];
+                }
+            } else if (op instanceof Op.Nop)
+                out[i] = NOP;
+            else
+                throw new RuntimeException("cannot encode " + op);
+        }
+        this.code = out;
+        this.pool = pool.toArray(new Val[0]);
+        this.mainEntry = at[unit.mainEntryPC];
+    }
+
+    private static int opcode(Op.Call c) {
+        if (!c.isbuiltin())
+            return CALL;
+        return c instanceof Op.GetOp ? GET : c instanceof Op.SetOp ? SET : c instanceof Op.COp ? C
+                : c instanceof Op.AddOp ? ADD : c instanceof Op.SubOp ? SUB : c instanceof Op.LengthOp ? LENGTH
+                : c instanceof Op.MoveOp ? MOVE : c instanceof Op.IntAddOp ? IADD : c instanceof Op.IntSubOp ? ISUB
+                : INTRINSIC;
+    }
+
+    // number of ints taken by op
+    private static int size(Op op) {
+        if (op instanceof Op.Entry || op instanceof Op.Jump)
+            return 2;
+        if (op instanceof Op.Branch)
+            return 4;
+        if (op instanceof Op.ArithBranch)
+            return 6;
+        if (op instanceof Op.Call c) {
+            var opcode = opcode(c);
+            var header = opcode == CALL || opcode == INTRINSIC ? 4 : opcode == C ? 3 : 2;
+            return header + c.args.size();
+        }
+        return 1;
+    }
+
+    private Val arg(Val[] regs, int fp, int a) {
+        return a >= 0 ? regs[fp + a] : pool[-a - 1];
+    }
+
+    // Run main and return the last value it assigned
+    Val execute() {
+        var code = this.code;
+        var regs = new Val[64];
+        var frames = new int[3 * 16]; // caller's fp, call offset, frame size
+        int depth = 0, fp = 0, size = code[mainEntry + 1];
+        var pc = mainEntry;
+        Val last = null;
+        regs = grow(regs, size);
+        while (true) {
+            switch (code[pc]) {
+                case NOP, ENTRY -> pc += code[pc] == NOP ? 1 : 2;
+                case JUMP -> pc = code[pc + 1];
+                case BRANCH -> pc = regs[fp + code[pc + 1]].eq(zero) == Val.BOOL.Y ? code[pc + 2] : code[pc + 3];
+                case CALL -> {
+                    var entry = code[pc + 2];
+                    var n = code[pc + 3];
+                    var nfp = fp + size;
+                    var nsize = Math.max(code[entry + 1], n);
+                    regs = grow(regs, nfp + nsize);
+                    for (int i = 0; i < n; i++) {
+                        var v = arg(regs, fp, code[pc + 4 + i]);
+                        v.retain();
+                        regs[nfp + i] = v;
+                    }
+                    if (3 * depth + 3 > frames.length)
+                        frames = Arrays.copyOf(frames, frames.length * 2);
+                    frames[3 * depth] = fp;
+                    frames[3 * depth + 1] = pc;
+                    frames[3 * depth + 2] = size;
+                    depth++;
+                    fp = nfp;
+                    size = nsize;
+                    last = null;
+                    pc = entry;
+                }
+                case EXIT -> {
+                    for (int i = fp; i < fp + size; i++)
+                        if (regs[i] != null) {
+                            regs[i].release();
+                            regs[i] = null;
+                        }
+                    var ret = last;
+                    depth--;
+                    fp = frames[3 * depth];
+                    var call = frames[3 * depth + 1];
+                    size = frames[3 * depth + 2];
+                    set(regs, fp + code[call + 1], ret);
+                    last = ret;
+                    pc = call + 4 + code[call + 3];
+                }
+                case MAIN_EXIT -> {
+                    if (last != null)
+                        last.share();
+                    return last;
+                }
+                case C -> {
+                    var n = code[pc + 2];
+                    var ps = new ArrayList<Val>(n);
+                    for (int i = 0; i < n; i++)
+                        ps.add(arg(regs, fp, code[pc + 3 + i]));
+                    set(regs, fp + code[pc + 1], last = Val.of(ps));
+                    pc += 3 + n;
+                }
+                case INTRINSIC -> {
+                    var def = Builtins.get(code[pc + 2]);
+                    var n = code[pc + 3];
+                    var ps = new Val[n];
+                    for (int i = 0; i < n; i++)
+                        ps[i] = arg(regs, fp, code[pc + 4 + i]);
+                    set(regs, fp + code[pc + 1], last = def.concrete().apply(ps));
+                    pc += 4 + n;
+                }
+                case GET -> {
+                    last = arg(regs, fp, code[pc + 2]).getVal(arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 4;
+                }
+                case SET -> {
+                    var tgt = code[pc + 1];
+                    var vec = arg(regs, fp, code[pc + 2]);
+                    var i = arg(regs, fp, code[pc + 3]);
+                    var x = arg(regs, fp, code[pc + 4]);
+                    last = code[pc + 2] == tgt && vec.unshared() ? vec.setInPlace(i, x) : vec.set(i, x);
+                    set(regs, fp + tgt, last);
+                    pc += 5;
+                }
+                case ADD -> {
+                    last = arg(regs, fp, code[pc + 2]).add(arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 4;
+                }
+                case SUB -> {
+                    last = arg(regs, fp, code[pc + 2]).sub(arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 4;
+                }
+                case IBRANCH -> pc = regs[fp + code[pc + 1]].isZeroInt() == Val.BOOL.Y ? code[pc + 2] : code[pc + 3];
+                case IADD -> {
+                    last = Val.addInts(arg(regs, fp, code[pc + 2]), arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 4;
+                }
+                case ISUB -> {
+                    last = Val.subInts(arg(regs, fp, code[pc + 2]), arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 4;
+                }
+                case IADD_BRANCH -> {
+                    last = Val.addInts(arg(regs, fp, code[pc + 2]), arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc = last.isZeroInt() == Val.BOOL.Y ? code[pc + 4] : code[pc + 5];
+                }
+                case ISUB_BRANCH -> {
+                    last = Val.subInts(arg(regs, fp, code[pc + 2]), arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc = last.isZeroInt() == Val.BOOL.Y ? code[pc + 4] : code[pc + 5];
+                }
+                case MOVE -> {
+                    last = arg(regs, fp, code[pc + 2]);
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 3;
+                }
+                case ADD_BRANCH -> {
+                    last = arg(regs, fp, code[pc + 2]).add(arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc = last.eq(zero) == Val.BOOL.Y ? code[pc + 4] : code[pc + 5];
+                }
+                case SUB_BRANCH -> {
+                    last = arg(regs, fp, code[pc + 2]).sub(arg(regs, fp, code[pc + 3]));
+                    set(regs, fp + code[pc + 1], last);
+                    pc = last.eq(zero) == Val.BOOL.Y ? code[pc + 4] : code[pc + 5];
+                }
+                case LENGTH -> {
+                    last = arg(regs, fp, code[pc + 2]).size();
+                    set(regs, fp + code[pc + 1], last);
+                    pc += 3;
+                }
+                default -> throw new RuntimeException("bad opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    private static void set(Val[] regs, int r, Val v) {
+        if (!v.isConcrete())
+            throw new RuntimeException("exec error got abstract value: " + v);
+        v.retain();
+        if (regs[r] != null)
+            regs[r].release();
+        regs[r] = v;
+    }
+
+    private static Val[] grow(Val[] regs, int n) {
+        return n <= regs.length ? regs : Arrays.copyOf(regs, Math.max(n, regs.length * 2));
+    }
+}
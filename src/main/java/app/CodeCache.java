@@ -0,0 +1,285 @@
+package app;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+// On disk cache of compiled programs, keyed by a hash of the source, the image
+// version and the builtin table. A hit is memory mapped and decoded straight
+// into a CodeUnit, nothing is parsed. An image that cannot be decoded is a
+// miss and is overwritten. VERSION must change with the image format and
+// with anything else that changes the code the Compiler emits.
+//
+// The image is big endian:
+//   magic, version
+//   pool:  count, then per entry a tag (NUM, STR) and an int or a string
+//   names: count, strings (function and builtin names)
+//   funs:  count, then per function name, entry pc, frame size
+//   code:  count, then per op an opcode and its operands
+//   lines: one int per op
+// A call argument is a register when >= 0 and pool entry -(a + 1) otherwise.
+// Builtins are stored by name and resolved again when loading. A branch has
+// an else pc, -1 for the next one, and an ArithBranch is its two targets
+// followed by its add or sub. Ops specialised by the Specializer are stored
+// as their general versions.
+class CodeCache {
+    private static final int MAGIC = 0x52484243; // RHBC
+    private static final int VERSION = 2;
+    private static final byte NUM = 0, STR = 1;
+    private static final byte NOP = 0, ENTRY = 1, EXIT = 2, MAIN_EXIT = 3, JUMP = 4, BRANCH = 5, CALL = 6, BUILTIN = 7,
+            ARITH_BRANCH = 8;
+
+    private final Path dir;
+
+    CodeCache(Path dir) {
+        this.dir = dir;
+    }
+
+    // The unit of script, compiled only if the cache has no image for it
+    CodeUnit load(Path script) {
+        try {
+            var src = Files.readAllBytes(script); // compiled from the bytes that were hashed
+            var img = dir.resolve(key(src) + ".rbc");
+            if (Files.exists(img))
+                try (var ch = FileChannel.open(img)) {
+                    var code = decode(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+                    if (code != null)
+                        return code;
+                }
+            var code = new Compiler().compile(new Lexer(ByteBuffer.wrap(src)));
+            Files.createDirectories(dir);
+            var tmp = Files.createTempFile(dir, "img", ".tmp");
+            Files.write(tmp, encode(code));
+            Files.move(tmp, img, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return code;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String key(byte[] source) {
+        try {
+            var md = MessageDigest.getInstance("SHA-256");
+            md.update(ByteBuffer.allocate(4).putInt(VERSION).array());
+            md.update(Builtins.signature().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(md.digest(source));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static byte[] encode(CodeUnit code) {
+        var pool = new ArrayList<Val>();
+        var poolIdx = new HashMap<Val, Integer>();
+        var names = new ArrayList<String>();
+        var nameIdx = new HashMap<String, Integer>();
+        var funs = new ArrayList<Integer>();
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            // the code goes first into its own buffer, it fills the pools
+            var ops = new ByteArrayOutputStream();
+            var o = new DataOutputStream(ops);
+            for (int pc = 0; pc < code.length(); pc++) {
+                var op = code.get(pc);
+                if (op instanceof Op.ArithBranch ab) {
+                    o.writeByte(ARITH_BRANCH);
+                    o.writeInt(ab.targetPc);
+                    o.writeInt(ab.elsePc);
+                    op = ab.arith;
+                }
+                if (op instanceof Op.Entry e) {
+                    funs.add(pc);
+                    o.writeByte(ENTRY);
+                    o.writeInt(name(e.funName, names, nameIdx));
+                    o.writeInt(e.frameSize);
+                } else if (op instanceof Op.MainExit e) {
+                    o.writeByte(MAIN_EXIT);
+                    o.writeInt(name(e.funName, names, nameIdx));
+                } else if (op instanceof Op.Exit e) {
+                    o.writeByte(EXIT);
+                    o.writeInt(name(e.funName, names, nameIdx));
+                } else if (op instanceof Op.Jump j) {
+                    o.writeByte(JUMP);
+                    o.writeInt(j.targetPc);
+                } else if (op instanceof Op.Branch b) {
+                    o.writeByte(BRANCH);
+                    o.writeInt(b.guardRegister);
+                    o.writeInt(b.targetPc);
+                    o.writeInt(b.elsePc);
+                } else if (op instanceof Op.Call c) {
+                    o.writeByte(c.isbuiltin() ? BUILTIN : CALL);
+                    o.writeInt(c.targetRegister);
+                    o.writeInt(name(c.funName, names, nameIdx));
+                    if (!c.isbuiltin())
+                        o.writeInt(c.entryPc);
+                    o.writeInt(c.args.size());
+                    for (var a : c.args)
+                        if (a instanceof Integer r && r < 0)
+                            throw new RuntimeException("cannot encode undefined register in " + op);
+                        else if (a instanceof Integer r)
+                            o.writeInt(r);
+                        else {
+                            var v = (Val) a;
+                            var i = poolIdx.get(v);
+                            if (i == null) {
+                                poolIdx.put(v, i = pool.size());
+                                pool.add(v);
+                            }
+                            o.writeInt(-(i + 1));
+                        }
+                } else if (op instanceof Op.Nop)
+                    o.writeByte(NOP);
+                else
+                    throw new RuntimeException("cannot encode " + op);
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pool.size());
+            for (var v : pool)
+                if (v.isNum() == Val.BOOL.Y) {
+                    out.writeByte(NUM);
+                    out.writeInt(v.asNum());
+                } else {
+                    out.writeByte(STR);
+                    str(out, v.asStr());
+                }
+            out.writeInt(names.size());
+            for (var n : names)
+                str(out, n);
+            out.writeInt(funs.size());
+            for (var pc : funs) {
+                out.writeInt(nameIdx.get(((Op.Entry) code.get(pc)).funName));
+                out.writeInt(pc);
+                out.writeInt(code.frameSize(pc));
+            }
+            out.writeInt(code.length());
+            ops.writeTo(out);
+            for (int pc = 0; pc < code.length(); pc++)
+                out.writeInt(code.line(pc));
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // not for an in memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    // null if the image was written by another version or is damaged
+    static CodeUnit decode(ByteBuffer in) {
+        try {
+            return read(in);
+        } catch (RuntimeException e) { // truncated, corrupt or calling a builtin that is gone
+            return null;
+        }
+    }
+
+    private static CodeUnit read(ByteBuffer in) {
+        if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION)
+            return null;
+        var pool = new Val[count(in)];
+        for (int i = 0; i < pool.length; i++)
+            pool[i] = in.get() == NUM ? Val.of(in.getInt()) : Val.of(str(in));
+        var names = new String[count(in)];
+        for (int i = 0; i < names.length; i++)
+            names[i] = str(in);
+        var mainEntry = -1;
+        for (int i = count(in); i > 0; i--) {
+            var name = names[in.getInt()];
+            var pc = in.getInt();
+            in.getInt(); // frame size, also on the Entry
+            if (name.equals("main"))
+                mainEntry = pc;
+        }
+        var ops = new ArrayList<Op>();
+        for (int i = count(in); i > 0; i--)
+            ops.add(switch (in.get()) {
+                case NOP -> Op.Nop.it;
+                case ENTRY -> new Op.Entry(names[in.getInt()], in.getInt());
+                case EXIT -> new Op.Exit(names[in.getInt()]);
+                case MAIN_EXIT -> new Op.MainExit(names[in.getInt()]);
+                case JUMP -> new Op.Jump(in.getInt());
+                case BRANCH -> new Op.Branch(in.getInt(), in.getInt(), in.getInt());
+                case CALL -> {
+                    var tgt = in.getInt();
+                    var name = names[in.getInt()];
+                    var entry = in.getInt();
+                    var c = new Op.Call(tgt, name, args(in, pool));
+                    c.entryPc = entry;
+                    yield c;
+                }
+                case BUILTIN -> builtin(in, names, pool);
+                case ARITH_BRANCH -> {
+                    var target = in.getInt();
+                    var elsePc = in.getInt();
+                    if (in.get() != BUILTIN)
+                        throw new RuntimeException("corrupt image");
+                    yield new Op.ArithBranch((Op.Builtin) builtin(in, names, pool), target, elsePc);
+                }
+                default -> throw new RuntimeException("corrupt image");
+            });
+        var lines = new int[ops.size()];
+        for (int pc = 0; pc < lines.length; pc++)
+            lines[pc] = in.getInt();
+        new Compiler().indexCallers(ops);
+        return new CodeUnit(ops.toArray(new Op[0]), mainEntry, lines);
+    }
+
+    private static Op builtin(ByteBuffer in, String[] names, Val[] pool) {
+        var tgt = in.getInt();
+        var name = names[in.getInt()];
+        var id = Builtins.id(name);
+        if (id < 0)
+            throw new RuntimeException("cached image calls unknown builtin " + name);
+        return Op.mkCall(tgt, name, id, args(in, pool));
+    }
+
+    private static List<Object> args(ByteBuffer in, Val[] pool) {
+        var args = new ArrayList<Object>();
+        for (int n = count(in); n > 0; n--) {
+            var a = in.getInt();
+            args.add(a >= 0 ? (Object) a : pool[-a - 1]);
+        }
+        return args;
+    }
+
+    // a count read from the image; every counted item takes at least a byte,
+    // so a larger one is corrupt and must not be allocated
+    private static int count(ByteBuffer in) {
+        var n = in.getInt();
+        if (n < 0 || n > in.remaining())
+            throw new RuntimeException("corrupt image");
+        return n;
+    }
+
+    private static int name(String n, List<String> names, Map<String, Integer> idx) {
+        return idx.computeIfAbsent(n, k -> {
+            names.add(k);
+            return names.size() - 1;
+        });
+    }
+
+    private static void str(DataOutputStream out, String s) throws IOException {
+        var b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String str(ByteBuffer in) {
+        var b = new byte[count(in)];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
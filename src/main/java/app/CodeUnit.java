@@ -0,0 +1,41 @@
+package app;
+
+// A compiled program: its instructions, the source line of each instruction
+// and where main starts and ends. Each
+// program owns its unit and units are not changed after compilation, so any
+// number of programs can be run and analysed at the same time.
+class CodeUnit {
+    private final Op[] code;
+    final int mainEntryPC;
+    final int mainExitPC;
+    private final int[] lines; // source line of each pc, -1 when there is none
+
+    CodeUnit(Op[] code, int mainEntryPC, int[] lines) {
+        if (lines.length != code.length)
+            throw new RuntimeException("line table does not match code");
+        this.code = code;
+        this.lines = lines;
+        this.mainEntryPC = mainEntryPC;
+        var pos = code.length - 1;
+        while (!(code[pos] instanceof Op.Exit))
+            pos--;
+        mainExitPC = pos;
+    }
+
+    int length() {
+        return code.length;
+    }
+
+    Op get(int pc) {
+        return code[pc];
+    }
+
+    int line(int pc) {
+        return lines[pc];
+    }
+
+    // number of registers of the function entered at entryPc
+    int frameSize(int entryPc) {
+        return ((Op.Entry) code[entryPc]).frameSize;
+    }
+}
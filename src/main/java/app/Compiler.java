@@ -1,78 +1,244 @@
 package app;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
 
 import app.Parser.Prog;
 
 class Compiler {
+    boolean peephole = true; // fuse superinstructions, off to see the plain code
+    private Set<String> funs = Set.of(); // names of the program's functions
 
-    int compile(Prog p) {
-        var ops = new ArrayList<Op>();
+    // The code of one function, with jump targets relative to its first op
+    record Segment(String name, List<Op> ops, List<Integer> lines) {
+        void emit(Op op, int line) {
+            ops.add(op);
+            lines.add(line);
+        }
+    }
+
+    // Register of each variable of a function, parameters first
+    static class Symbols {
+        private final HashMap<String, Integer> regs = new HashMap<>();
+        private int size;
+
+        // every parameter gets a register, even a repeated one
+        void param(String name) {
+            regs.putIfAbsent(name, size++);
+        }
+
+        void local(String name) {
+            if (regs.putIfAbsent(name, size) == null)
+                size++;
+        }
+
+        // -1 for an unknown name
+        int get(String name) {
+            return regs.getOrDefault(name, -1);
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    CodeUnit compile(Prog p) {
+        funs = new HashSet<>();
         for (var f : p.funs())
-            compile(f.name(), f.args(), f.body(), ops);
-        compile("main", new ArrayList<String>(), p.main(), ops);
+            funs.add(f.name());
+        var segs = new ArrayList<Segment>();
+        for (var f : p.funs())
+            segs.add(compile(f.name(), f.args(), f.body()));
+        segs.add(compile("main", List.of(), p.main()));
+        return link(segs);
+    }
+
+    // Functions only depend on each other through calls, so each one is
+    // parsed and compiled on its own on the fork join pool, then all are linked
+    CodeUnit compile(Lexer lx) {
+        var starts = Predictive.split(lx);
+        if (starts == null) // let the sequential parser report the error
+            return compile(new Predictive(lx).parse());
+        funs = new HashSet<>();
+        for (int i = 0; i + 1 < starts.length; i++)
+            if (starts[i] + 1 < lx.count())
+                funs.add(lx.text(starts[i] + 1)); // the name after 'fun'
+        var segs = IntStream.range(0, starts.length).parallel().mapToObj(i -> {
+            var in = new Predictive(lx, starts[i]);
+            if (i == starts.length - 1)
+                return compile("main", List.of(), in.parseMain());
+            var f = in.parseFun();
+            return compile(f.name(), f.args(), f.body());
+        }).toList();
+        return link(segs);
+    }
+
+    // Lay the segments out one after the other and resolve calls
+    CodeUnit link(List<Segment> segs) {
+        var ops = new ArrayList<Op>();
+        var lines = new ArrayList<Integer>();
+        var entries = new HashMap<String, Integer>();
+        for (var seg : segs) {
+            var base = ops.size();
+            entries.putIfAbsent(seg.name(), base);
+            for (var op : seg.ops())
+                op.retarget(pc -> pc + base);
+            ops.addAll(seg.ops());
+            lines.addAll(seg.lines());
+        }
         for (var op : ops)
-            if (op instanceof Op.Call c)
-                c.entryPc = findFun(c.funName, ops);
-        var code = new Op[ops.size()];
-        for (int i = 0; i < ops.size(); i++)
-            code[i] = ops.get(i);
-        Op.set(code);
-        return findFun("main", ops);
+            if (op instanceof Op.Call c && !c.isbuiltin()) {
+                var entry = entries.get(c.funName);
+                if (entry == null)
+                    throw new RuntimeException("call to undefined function " + c.funName);
+                c.entryPc = entry;
+            }
+        indexCallers(ops);
+        var ls = lines.stream().mapToInt(i -> i).toArray();
+        return new CodeUnit(ops.toArray(new Op[0]), entries.get("main"), ls);
     }
 
-    int findFun(String name, List<Op> ops) {
-        int i = 0;
-        while (i < ops.size() && !(ops.get(i) instanceof Op.Entry e && e.funName.equals(name)))
-            i++;
-        return i;
+    // record on each Exit the pcs of the calls that return through it
+    void indexCallers(List<Op> ops) {
+        var callers = new HashMap<String, List<Integer>>();
+        for (int i = 0; i < ops.size(); i++)
+            if (ops.get(i) instanceof Op.Call c && !c.isbuiltin())
+                callers.computeIfAbsent(c.funName, k -> new ArrayList<>()).add(i);
+        for (var op : ops)
+            if (op instanceof Op.Exit e)
+                e.callSites = callers.getOrDefault(e.funName, List.of()).stream().mapToInt(i -> i).toArray();
     }
 
-    void compile(String fname, List<String> params, List<Parser.Stmt> body, List<Op> ops) {
-        var names = new ArrayList<String>();
-        names.addAll(params);
+    Segment compile(String fname, List<String> params, List<Parser.Stmt> body) {
+        var names = new Symbols();
+        for (var p : params)
+            names.param(p);
         for (var b : body)
             addNames(b, names);
-        ops.add(new Op.Entry(fname));
-        addOps(body, ops, names);
-        ops.add(fname.equals("main") ? new Op.MainExit(fname) : new Op.Exit(fname));
+        var seg = new Segment(fname, new ArrayList<>(), new ArrayList<>());
+        seg.emit(new Op.Entry(fname, names.size()), -1);
+        addOps(body, seg, names);
+        seg.emit(fname.equals("main") ? new Op.MainExit(fname) : new Op.Exit(fname), -1);
+        if (peephole)
+            peephole(seg);
+        return seg;
+    }
+
+    // Fuse common sequences of a segment into superinstructions:
+    //   branches and jumps to a jump go straight to its target
+    //   tgt = add/sub(..); if @tgt goto T       => one ArithBranch
+    //   tgt = add/sub(..); jmp L; L: if @tgt .. => one ArithBranch, the
+    //                                              loop's back edge
+    //   jmp L; L: if @r goto T                  => if @r goto T else L+1
+    // An op is only fused away when nothing jumps to it; the others are
+    // then renumbered.
+    void peephole(Segment seg) {
+        var ops = seg.ops();
+        var n = ops.size();
+        for (var op : ops)
+            op.retarget(t -> follow(ops, t));
+        var targeted = new BitSet();
+        for (int i = 0; i < n; i++)
+            for (var t : ops.get(i).succs(i))
+                if (t != i + 1)
+                    targeted.set(t);
+        var dead = new BitSet();
+        for (int i = 0; i + 1 < n; i++) {
+            if (!(ops.get(i) instanceof Op.AddOp || ops.get(i) instanceof Op.SubOp) || targeted.get(i + 1))
+                continue;
+            var arith = (Op.Builtin) ops.get(i);
+            var next = ops.get(i + 1);
+            var loop = next instanceof Op.Jump j ? j.targetPc : -1;
+            var test = loop >= 0 ? ops.get(loop) : next;
+            if (test instanceof Op.Branch b && b.elsePc < 0 && b.guardRegister == arith.targetRegister) {
+                ops.set(i, new Op.ArithBranch(arith, b.targetPc, loop >= 0 ? loop + 1 : i + 2));
+                dead.set(++i);
+            }
+        }
+        for (int i = 0; i < n; i++)
+            if (!dead.get(i) && ops.get(i) instanceof Op.Jump j && ops.get(j.targetPc) instanceof Op.Branch b
+                    && b.elsePc < 0)
+                ops.set(i, new Op.Branch(b.guardRegister, b.targetPc, j.targetPc + 1));
+        if (dead.isEmpty())
+            return;
+        var newPc = new int[n + 1];
+        var kept = 0;
+        for (int i = 0; i <= n; i++) {
+            newPc[i] = kept;
+            if (i < n && !dead.get(i)) {
+                ops.set(kept, ops.get(i));
+                seg.lines().set(kept++, seg.lines().get(i));
+            }
+        }
+        ops.subList(kept, n).clear();
+        seg.lines().subList(kept, n).clear();
+        for (var op : ops)
+            op.retarget(t -> newPc[t]);
+    }
+
+    // where control ends up when going to pc, skipping jumps
+    private static int follow(List<Op> ops, int pc) {
+        for (int i = 0; i < ops.size() && ops.get(pc) instanceof Op.Jump j; i++)
+            pc = j.targetPc;
+        return pc;
     }
 
-    void addOps(List<Parser.Stmt> b, List<Op> ops, List<String> names) {
+    void addOps(List<Parser.Stmt> b, Segment seg, Symbols names) {
+        var ops = seg.ops();
         for (var s : b) {
             if (s instanceof Parser.Call o) {
                 var vals = new ArrayList<Object>();
                 for (var v : o.params)
                     vals.add(switch (v.kind()) {
-                        case STR -> new Val(v.asStr());
-                        case NUM -> new Val(v.asNum());
-                        case ID -> names.indexOf(v.asId());
+                        case STR -> Val.of(v.asStr());
+                        case NUM -> Val.of(v.asNum());
+                        case ID -> reg(names, v.asId(), o.lineNum);
                         default -> null;
                     });
-                ops.add(Op.mkCall(names.indexOf(o.t_var), o.f_name, vals));
+                seg.emit(Op.mkCall(names.get(o.t_var), o.f_name, builtin(o.f_name), vals), o.lineNum);
             } else if (s instanceof Parser.If o) {
                 var start = ops.size();
-                ops.add(Op.Nop.it); // placeholder
-                addOps(o.body, ops, names);
+                seg.emit(Op.Nop.it, o.lineNum); // placeholder
+                addOps(o.body, seg, names);
                 var end = ops.size();
-                ops.set(start, new Op.Branch(names.indexOf(o.guard.asId()), end)); // patch placeholder
+                ops.set(start, new Op.Branch(reg(names, o.guard.asId(), o.lineNum), end)); // patch placeholder
             } else if (s instanceof Parser.While o) {
                 var start = ops.size();
-                ops.add(Op.Nop.it); // placeholder
-                addOps(o.body, ops, names);
-                ops.add(new Op.Jump(start));
+                seg.emit(Op.Nop.it, o.lineNum); // placeholder
+                addOps(o.body, seg, names);
+                seg.emit(new Op.Jump(start), o.lineNum);
                 var end = ops.size();
-                ops.set(start, new Op.Branch(names.indexOf(o.guard.asId()), end)); // patch placeholder
+                ops.set(start, new Op.Branch(reg(names, o.guard.asId(), o.lineNum), end)); // patch placeholder
             } else
                 throw new RuntimeException("Unreachable");
         }
     }
 
-    private void addNames(Parser.Stmt s, List<String> names) {
+    // the register of a variable that is read. A name that is never assigned
+    // is an error here, as -1 would read as a constant in Bytecode and images
+    private static int reg(Symbols names, String name, int line) {
+        var r = names.get(name);
+        if (r < 0)
+            throw new RuntimeException("undefined variable " + name + " at line " + (line + 1));
+        return r;
+    }
+
+    // the Builtins id of a call to name, or -1 for a user function. A user
+    // function hides a registered builtin, but not one of those with their
+    // own opcode, which always came first
+    private int builtin(String name) {
+        var id = Builtins.id(name);
+        return id > Builtins.LENGTH && funs.contains(name) ? -1 : id;
+    }
+
+    private void addNames(Parser.Stmt s, Symbols names) {
         if (s instanceof Parser.Call o) {
-            if (!names.contains(o.t_var))
-                names.add(o.t_var);
+            names.local(o.t_var);
         } else if (s instanceof Parser.If o)
             for (var b : o.body)
                 addNames(b, names);
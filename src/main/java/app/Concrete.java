@@ -1,48 +1,81 @@
 package app;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import app.Parser.Prog;
+import app.Val.BOOL;
 
 class Concrete {
 
-    Prog program;
+    protected CodeUnit code;
     protected IState in;
     protected int mainEntryPC;
     protected int mainExitPC;
+    protected Listener listener; // null when nobody is watching
 
-    Concrete(Prog p) {
-        program = p;
-        mainEntryPC = new Compiler().compile(program);
-        mainExitPC = Op.exitPC();
-        in = new State(mainEntryPC);
+    Concrete(CodeUnit code) {
+        this(code, false);
     }
 
-    IState execute(Dynamic obs) {
-        int pc;
-        while ((pc = in.pc()) != mainExitPC) {
-            var op = Op.get(pc);
-            in = op.exec(in);
-            App.p(App.pad(pc + " : ", 6) + App.pad(op + " ", 14) + in);
-            if (obs != null)
-                obs.observe(pc, in.pc());
-        }
+    // When inPlace is set the engine owns a single stack that is updated in
+    // place, otherwise every instruction builds a fresh immutable State.
+    Concrete(CodeUnit code, boolean inPlace) {
+        this.code = code;
+        mainEntryPC = code.mainEntryPC;
+        mainExitPC = code.mainExitPC;
+        in = inPlace ? new MutableState(code, mainEntryPC) : new State(code, mainEntryPC);
+    }
+
+    IState execute() {
+        while (!run(Integer.MAX_VALUE))
+            ;
         return in;
     }
+
+    // Run at most steps instructions, true once main has returned. A caller
+    // holding a budget can stop between calls and resume later.
+    boolean run(int steps) {
+        int pc;
+        if (listener == null)
+            while ((pc = in.pc()) != mainExitPC) {
+                if (steps-- == 0)
+                    return false;
+                in = code.get(pc).exec(in);
+            }
+        else
+            while ((pc = in.pc()) != mainExitPC) {
+                if (steps-- == 0)
+                    return false;
+                var op = code.get(pc);
+                in = op.exec(in);
+                listener.step(pc, op, in);
+            }
+        if (in.last() != null)
+            in.last().share(); // the result may be handed to other threads
+        return true;
+    }
 }
 
 class State implements IState {
+    private final CodeUnit code;
     private List<Frame> stack = new ArrayList<>();
     private Val last;
 
-    State(int pc) {
-        stack.add(new Frame(pc, new ArrayList<Val>()));
+    State(CodeUnit code, int pc) {
+        this.code = code;
+        stack.add(new Frame(pc, code.frameSize(pc), new Val[0], 0));
     }
 
     private State(State base) {
-        for (var f : base.stack)
+        this(base.code, base.stack, base.last);
+    }
+
+    State(CodeUnit code, List<Frame> frames, Val last) {
+        this.code = code;
+        for (var f : frames)
             stack.add(new Frame(f));
+        this.last = last;
     }
 
     private Frame top() {
@@ -59,18 +92,23 @@ class State implements IState {
         res.last = returnVal;
         res.stack.remove(stack.size() - 1);
         if (res.height() > 0) {
-            res = res.set(((Op.Call) Op.get(res.pc())).targetRegister, returnVal);
+            res = res.set(((Op.Call) code.get(res.pc())).targetRegister, returnVal);
             res.top().next(res.pc() + 1);
         }
         return res;
     }
 
-    public State push(int entryPc, List<Val> args) {
+    public State push(int entryPc, Val[] args, int n) {
         var res = new State(this);
-        res.stack.add(new Frame(entryPc, args));
+        res.stack.add(new Frame(entryPc, code.frameSize(entryPc), args, n));
         return res;
     }
 
+    // every step copies the state anyway, so there is nothing to reuse
+    public Val[] args(int n) {
+        return new Val[n];
+    }
+
     public State set(int reg, Val value) {
         if (!value.isConcrete())
             throw new RuntimeException("exec error got abstract value: " + value);
@@ -86,15 +124,22 @@ class State implements IState {
             return false;
     }
 
-    public State next(int[] pcs) {
-        if (pcs.length != 1)
-            throw new RuntimeException("concrete execution requires a single target");
-        var pc = pcs[0];
+    public State next() {
+        return jump(pc() + 1);
+    }
+
+    public State jump(int pc) {
         var res = new State(this);
         res.top().next(pc);
         return res;
     }
 
+    public State branch(BOOL taken, int target, int other) {
+        if (taken == BOOL.M)
+            throw new RuntimeException("concrete execution requires a single target");
+        return jump(taken == BOOL.Y ? target : other);
+    }
+
     public String toString() {
         if (height() == 0)
             return "State()";
@@ -119,33 +164,187 @@ class State implements IState {
     public Val getRegister(int i) {
         return top().get(i);
     }
+
+    // frames are shared between states, so values are never updated in place
+    public boolean canMutate(int i) {
+        return false;
+    }
+
+    public State snapshot() {
+        return this;
+    }
+}
+
+// Concrete state that owns its stack and updates it in place. Every operation
+// returns the receiver and frames are kept for reuse when they are popped, so
+// once the stack has reached its depth an instruction allocates nothing. Use
+// snapshot() to get an immutable copy.
+class MutableState implements IState {
+    private final CodeUnit code;
+    private Frame[] stack = new Frame[16]; // frames above height are free
+    private int height;
+    private Val[] argBuf = new Val[8];
+    private Val last;
+
+    MutableState(CodeUnit code, int pc) {
+        this.code = code;
+        push(pc, argBuf, 0);
+    }
+
+    private Frame top() {
+        return stack[height - 1];
+    }
+
+    public MutableState pop(Val returnVal) {
+        last = returnVal;
+        stack[--height].release();
+        if (height > 0) {
+            set(((Op.Call) code.get(pc())).targetRegister, returnVal);
+            top().next(pc() + 1);
+        }
+        return this;
+    }
+
+    public MutableState push(int entryPc, Val[] args, int n) {
+        if (height == stack.length)
+            stack = Arrays.copyOf(stack, height * 2);
+        var size = code.frameSize(entryPc);
+        var f = stack[height];
+        if (f == null || !f.reset(entryPc, size, args, n))
+            stack[height] = new Frame(entryPc, size, args, n);
+        height++;
+        return this;
+    }
+
+    public Val[] args(int n) {
+        if (n > argBuf.length)
+            argBuf = new Val[Math.max(n, argBuf.length * 2)];
+        return argBuf;
+    }
+
+    public MutableState set(int reg, Val value) {
+        if (!value.isConcrete())
+            throw new RuntimeException("exec error got abstract value: " + value);
+        top().set(reg, value);
+        return this;
+    }
+
+    public MutableState next() {
+        var f = top();
+        f.next(f.pc() + 1);
+        return this;
+    }
+
+    public MutableState jump(int pc) {
+        top().next(pc);
+        return this;
+    }
+
+    public MutableState branch(BOOL taken, int target, int other) {
+        if (taken == BOOL.M)
+            throw new RuntimeException("concrete execution requires a single target");
+        top().next(taken == BOOL.Y ? target : other);
+        return this;
+    }
+
+    public Val last() {
+        return height == 0 ? last : top().last();
+    }
+
+    public int pc() {
+        return height == 0 ? -1 : top().pc();
+    }
+
+    public Val getRegister(int i) {
+        return top().get(i);
+    }
+
+    public boolean canMutate(int i) {
+        return top().get(i).unshared();
+    }
+
+    // copy the stack into an immutable State, after which all values are
+    // aliased and must be copied on write
+    public State snapshot() {
+        var frames = Arrays.asList(stack).subList(0, height);
+        for (var f : frames)
+            for (var v : f.regs)
+                if (v != null)
+                    v.share();
+        return new State(code, frames, last);
+    }
+
+    // the top frame with its int vectors copied, snapshot() would share all
+    // the values on the stack and stop set from updating them in place
+    public Object trace() {
+        if (height == 0)
+            return "State()";
+        var f = new Frame(top());
+        for (int i = 0; i < f.regs.length; i++)
+            if (f.regs[i] != null)
+                f.regs[i] = f.regs[i].frozen();
+        return new Trace(f, height - 1);
+    }
+
+    public String toString() {
+        return height == 0 ? "State()" : new Trace(top(), height - 1).toString();
+    }
+
+    private record Trace(Frame top, int below) {
+        public String toString() {
+            return "State(" + top + (below > 0 ? " ... " + below : "") + ")";
+        }
+    }
 }
 
 class Frame {
     int pc;
-    List<Val> regs = new ArrayList<Val>();
+    Val[] regs; // sized once from the Entry of the function
     Val lastValue;
 
-    Frame(int pc, List<Val> params) {
+    Frame(int pc, int size, Val[] params, int n) {
+        regs = new Val[Math.max(size, n)];
+        reset(pc, size, params, n);
+    }
+
+    // reuse this released frame for a call, false if it is too small
+    boolean reset(int pc, int size, Val[] params, int n) {
+        if (regs.length < Math.max(size, n))
+            return false;
         this.pc = pc;
-        for (var v : params)
-            regs.add(v);
+        lastValue = null;
+        for (int i = 0; i < n; i++) {
+            regs[i] = params[i];
+            regs[i].retain();
+        }
+        return true;
     }
 
     Frame(Frame f) {
-        this(f.pc, f.regs);
+        pc = f.pc;
+        regs = f.regs.clone();
         lastValue = f.lastValue;
     }
 
     Val get(int reg) {
-        return regs.get(reg);
+        return regs[reg];
     }
 
     void set(int reg, Val value) {
         lastValue = value;
-        while (reg >= regs.size())
-            regs.add(null);
-        regs.set(reg, value);
+        value.retain();
+        if (regs[reg] != null)
+            regs[reg].release();
+        regs[reg] = value;
+    }
+
+    // drop the references held by the registers of a popped frame
+    void release() {
+        for (int i = 0; i < regs.length; i++)
+            if (regs[i] != null) {
+                regs[i].release();
+                regs[i] = null;
+            }
     }
 
     Val last() {
@@ -161,10 +360,10 @@ class Frame {
     }
 
     public String toString() {
-        var s = "";
-        for (int i = 0; i < regs.size(); i++)
-            s += i + "=" + regs.get(i) + ",";
-        s = s.length() > 0 ? s.substring(0, s.length() - 1) : s;
-        return "[" + s + "]";
+        var s = new StringBuilder("[");
+        for (int i = 0; i < regs.length; i++)
+            if (regs[i] != null)
+                s.append(s.length() > 1 ? "," : "").append(i).append('=').append(regs[i]);
+        return s.append(']').toString();
     }
 }
\ No newline at end of file
@@ -1,16 +1,20 @@
 package app;
 
-import app.Parser.Prog;
+// Runs the program concretely and, at every step, the abstract transfer of
+// the same instruction.
+class Dynamic extends Abstract implements Listener {
+    Tracer trace; // prints both runs side by side when set
 
-class Dynamic extends Abstract {
-
-    Dynamic(Prog p) {
-        super(p);
+    Dynamic(CodeUnit code) {
+        super(code);
+        listener = this;
     }
 
-    void observe(int pc, int nextPC) {
-        var op = Op.get(pc);
+    public void step(int pc, Op op, IState out) {
         op.exec(astates[pc]);
-        App.p(App.pad(pc + " : ", 6) + App.pad(op + " ", 14) + App.pad(astates[nextPC] + " ", 40) + "<--dynamic");
+        if (trace != null) {
+            trace.step(pc, op, out);
+            trace.note(pc, op, astates[out.pc()], "<--dynamic");
+        }
     }
-}
\ No newline at end of file
+}
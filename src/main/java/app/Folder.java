@@ -0,0 +1,147 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import app.Val.BOOL;
+
+// Constant propagation and dead code removal from the results of the
+// abstract interpreter. At every pc the analysis reaches:
+//   a register argument proven to hold one scalar becomes a constant
+//   a builtin whose result is proven to be one scalar becomes c(result)
+//   a branch whose guard is decided becomes a jump, or falls through
+// Ops the analysis never reaches are dropped, but for function entries and
+// exits, as are jumps to the next op, and the code left is renumbered. The
+// input unit is not changed.
+class Folder {
+
+    static CodeUnit fold(CodeUnit code) {
+        var a = new Abstract(code);
+        a.analyze();
+        var n = code.length();
+        var ops = new ArrayList<Op>();
+        var lines = new ArrayList<Integer>();
+        var newPc = new int[n + 1]; // a dropped pc goes where control falls through to
+        for (int pc = 0; pc < n; pc++) {
+            newPc[pc] = ops.size();
+            var op = code.get(pc);
+            var folded = a.seen.get(pc) ? fold(op, pc, a.astates[pc])
+                    : op instanceof Op.Entry || op instanceof Op.Exit ? List.of(copy(op)) : List.<Op>of();
+            for (var o : folded) {
+                ops.add(o);
+                lines.add(code.line(pc));
+            }
+        }
+        newPc[n] = ops.size();
+        for (var op : ops)
+            op.retarget(t -> newPc[t]);
+        // then the jumps left going to the next op
+        var m = ops.size();
+        var at = new int[m + 1];
+        var kept = 0;
+        for (int i = 0; i <= m; i++) {
+            at[i] = kept;
+            if (i < m && !(ops.get(i) instanceof Op.Jump j && j.targetPc == i + 1)) {
+                ops.set(kept, ops.get(i));
+                lines.set(kept++, lines.get(i));
+            }
+        }
+        ops.subList(kept, m).clear();
+        lines.subList(kept, m).clear();
+        for (var op : ops)
+            op.retarget(t -> at[t]);
+        new Compiler().indexCallers(ops);
+        var ls = lines.stream().mapToInt(i -> i).toArray();
+        return new CodeUnit(ops.toArray(new Op[0]), at[newPc[code.mainEntryPC]], ls);
+    }
+
+    // the ops replacing op at pc given the states described by in, with
+    // targets still in the old numbering
+    static List<Op> fold(Op op, int pc, IState in) {
+        if (op instanceof Op.Branch b) {
+            var guard = in.getRegister(b.guardRegister);
+            var other = b.elsePc < 0 ? pc + 1 : b.elsePc;
+            return guard.isBot() ? List.of(copy(op)) : decide(guard.eq(Op.Branch.zero), b.targetPc, other, pc, op);
+        }
+        if (op instanceof Op.ArithBranch ab) {
+            var v = ab.arith.apply(in);
+            var arith = fold(ab.arith, in);
+            var zero = v.isBot() ? BOOL.M : v.eq(Op.Branch.zero);
+            if (zero == BOOL.M) // a constant result is always decided, so arith is still an add or sub
+                return List.of(new Op.ArithBranch((Op.Builtin) arith, ab.targetPc, ab.elsePc));
+            var res = new ArrayList<Op>(List.of(arith));
+            res.addAll(decide(zero, ab.targetPc, ab.elsePc, pc, null));
+            return res;
+        }
+        if (op instanceof Op.Call c)
+            return List.of(fold(c, in));
+        return List.of(copy(op));
+    }
+
+    // a jump to the side taken, nothing when that is the next pc, or a copy
+    // of op when undecided
+    private static List<Op> decide(BOOL taken, int target, int other, int pc, Op op) {
+        if (taken == BOOL.M)
+            return List.of(copy(op));
+        var to = taken == BOOL.Y ? target : other;
+        return to == pc + 1 ? List.of() : List.of(new Op.Jump(to));
+    }
+
+    private static Op.Call fold(Op.Call c, IState in) {
+        if (c instanceof Op.Builtin b) {
+            var v = constant(b.apply(in));
+            if (v != null)
+                return Op.mkCall(c.targetRegister, "c", Builtins.C, List.of(v));
+        }
+        var args = new ArrayList<Object>(c.args);
+        var changed = false;
+        for (int i = 0; i < c.regs.length; i++) {
+            var v = c.regs[i] >= 0 ? constant(in.getRegister(c.regs[i])) : null;
+            if (v != null) {
+                args.set(i, v);
+                changed = true;
+            }
+        }
+        return changed ? withArgs(c, args) : (Op.Call) copy(c);
+    }
+
+    // the one scalar v is proven to be, or null
+    private static Val constant(Val v) {
+        if (!v.isConcrete() || v.isScalar() != BOOL.Y)
+            return null;
+        if (v.isNum() == BOOL.Y)
+            return v.asNum() == null ? null : Val.of(v.asNum());
+        return v.isStr() == BOOL.Y && v.asStr() != null ? Val.of(v.asStr()) : null;
+    }
+
+    private static Op.Call withArgs(Op.Call c, List<Object> args) {
+        if (c instanceof Op.IntAddOp)
+            return new Op.IntAddOp(c.targetRegister, args);
+        if (c instanceof Op.IntSubOp)
+            return new Op.IntSubOp(c.targetRegister, args);
+        if (c.isbuiltin())
+            return Op.mkCall(c.targetRegister, c.funName, Builtins.id(c.funName), args);
+        var call = new Op.Call(c.targetRegister, c.funName, args);
+        call.entryPc = c.entryPc;
+        return call;
+    }
+
+    // ops that refer to pcs are copied before they are renumbered
+    private static Op copy(Op op) {
+        if (op instanceof Op.IntBranch b)
+            return new Op.IntBranch(b.guardRegister, b.targetPc, b.elsePc);
+        if (op instanceof Op.Branch b)
+            return new Op.Branch(b.guardRegister, b.targetPc, b.elsePc);
+        if (op instanceof Op.Jump j)
+            return new Op.Jump(j.targetPc);
+        if (op instanceof Op.ArithBranch ab)
+            return new Op.ArithBranch(ab.arith, ab.targetPc, ab.elsePc);
+        if (op instanceof Op.MainExit e)
+            return new Op.MainExit(e.funName);
+        if (op instanceof Op.Exit e)
+            return new Op.Exit(e.funName);
+        if (op instanceof Op.Call c && !c.isbuiltin())
+            return withArgs(c, c.args);
+        return op;
+    }
+}
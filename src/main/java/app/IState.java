@@ -1,6 +1,6 @@
 package app;
 
-import java.util.List;
+import app.Val.BOOL;
 
 // Computational state, assuming that values are immutable and there is no heap
 interface IState {
@@ -8,14 +8,26 @@ interface IState {
     // pop the topmost frame and return val
     IState pop(Val val);
 
-    // push a frame for a function starting at entryPc and with arguments args
-    IState push(int entryPc, List<Val> args);
+    // push a frame for a function starting at entryPc whose first n
+    // registers are args[0..n)
+    IState push(int entryPc, Val[] args, int n);
+
+    // a buffer for at least n call arguments; it belongs to the state and is
+    // overwritten by the next call
+    Val[] args(int n);
 
     // set register reg to value
     IState set(int reg, Val value);
 
-    // set the next pc to pcs; in concrete execs there will be only one
-    IState next(int[] pcs);
+    // continue at the next pc
+    IState next();
+
+    // continue at pc
+    IState jump(int pc);
+
+    // continue at target when taken is Y, at other when N and at both when
+    // M; concrete execs never see M
+    IState branch(BOOL taken, int target, int other);
 
     // return the last value assigned in the top frame, or null
     Val last();
@@ -25,4 +37,17 @@ interface IState {
 
     // return value of register i in topmost frame
     Val getRegister(int i);
+
+    // true if register i is the only reference to its value, so the value may
+    // be updated in place
+    boolean canMutate(int i);
+
+    // return a copy that is not affected by later updates to this state
+    IState snapshot();
+
+    // what a tracer records: prints as this state does now, and is taken
+    // without changing how values are shared
+    default Object trace() {
+        return snapshot();
+    }
 }
@@ -0,0 +1,173 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Splits a source into tokens in one pass over its bytes. The file is memory
+// mapped and tokens are (kind, offset, length) triples kept in primitive
+// arrays, so no text is copied until a token's text is asked for. Line
+// numbers come from a table of line start offsets.
+class Lexer {
+    static final byte IDENT = 0, NUM = 1, STR = 2, DELIM = 3; // same order as Tok.K
+
+    private final ByteBuffer src;
+    private byte[] kinds = new byte[1024];
+    private int[] offs = new int[1024];
+    private int[] lens = new int[1024];
+    private int count;
+    private int[] lineStarts = new int[256];
+    private int lines;
+
+    Lexer(ByteBuffer src) {
+        this.src = src;
+        lex();
+    }
+
+    static Lexer of(Path file) {
+        try (var ch = FileChannel.open(file)) {
+            return new Lexer(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Lexer of(String src) {
+        return new Lexer(ByteBuffer.wrap(src.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    int count() {
+        return count;
+    }
+
+    byte kind(int tok) {
+        return kinds[tok];
+    }
+
+    int offset(int tok) {
+        return offs[tok];
+    }
+
+    String text(int tok) {
+        return slice(offs[tok], lens[tok]);
+    }
+
+    // does tok spell s, without building its text
+    boolean is(int tok, String s) {
+        if (lens[tok] != s.length())
+            return false;
+        for (int i = 0, o = offs[tok]; i < lens[tok]; i++)
+            if (src.get(o + i) != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    // the 0 based line holding offset
+    int line(int offset) {
+        var i = Arrays.binarySearch(lineStarts, 0, lines, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    String lineText(int line) {
+        var from = lineStarts[line];
+        var to = line + 1 < lines ? lineStarts[line + 1] - 1 : src.limit();
+        return slice(from, to - from);
+    }
+
+    private String slice(int off, int len) {
+        var b = new byte[len];
+        src.get(off, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void lex() {
+        var n = src.limit();
+        newLine(0);
+        var p = 0;
+        while (p < n) {
+            var c = src.get(p);
+            if (c == '\n') {
+                newLine(++p);
+            } else if (c == ' ' || c == '\t' || c == '\r' || c == '\f') {
+                p++;
+            } else if (c == '#') {
+                while (p < n && src.get(p) != '\n')
+                    p++;
+            } else if (isDigit(c)) {
+                var start = p;
+                var dots = 0;
+                while (p < n && (isDigit(src.get(p)) || src.get(p) == '.'))
+                    if (src.get(p++) == '.')
+                        dots++;
+                if (dots > 1 || p < n && isIdChar(src.get(p)))
+                    fail(start, "malformed number");
+                add(NUM, start, p - start);
+            } else if (c == '"') {
+                var start = ++p;
+                while (p < n && src.get(p) != '"')
+                    if (src.get(p++) == '\n')
+                        newLine(p);
+                add(STR, start, p - start);
+                if (p < n)
+                    p++; // closing quote
+            } else if (isIdChar(c) || c == '\\' && isEscape(p + 1)) {
+                var start = p;
+                while (p < n)
+                    if (isIdChar(src.get(p)))
+                        p++;
+                    else if (src.get(p) == '\\' && isEscape(p + 1))
+                        p += 2;
+                    else
+                        break;
+                add(IDENT, start, p - start);
+            } else if (isDelim(c)) {
+                add(DELIM, p++, 1);
+            } else
+                fail(p, "unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void add(byte k, int off, int len) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            offs = Arrays.copyOf(offs, count * 2);
+            lens = Arrays.copyOf(lens, count * 2);
+        }
+        kinds[count] = k;
+        offs[count] = off;
+        lens[count++] = len;
+    }
+
+    private void newLine(int off) {
+        if (lines == lineStarts.length)
+            lineStarts = Arrays.copyOf(lineStarts, lines * 2);
+        lineStarts[lines++] = off;
+    }
+
+    private void fail(int off, String msg) {
+        throw new RuntimeException(msg + " at line " + (line(off) + 1));
+    }
+
+    private boolean isEscape(int p) {
+        return p < src.limit() && (src.get(p) == ':' || src.get(p) == ' ');
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // ids may not start with a digit, but numbers are lexed first
+    private static boolean isIdChar(byte c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || isDigit(c) || c == '_' || c == '.' || c < 0;
+    }
+
+    private static boolean isDelim(byte c) {
+        return switch (c) {
+            case ':', ',', '=', '|', '(', ')', '[', ']', '{', '}', '?', '*', '-' -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,9 @@
+package app;
+
+// Observer of executed instructions. Engines only call it when one is set,
+// so running without a listener costs nothing.
+interface Listener {
+
+    // the instruction op at pc was executed and produced state out
+    void step(int pc, Op op, IState out);
+}
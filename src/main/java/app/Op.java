@@ -2,43 +2,44 @@ package app;
 
 import java.util.ArrayList;
 import java.util.List;
-
-import app.Val.BOOL;
+import java.util.function.IntUnaryOperator;
 
 // The instruction set of our small bytecode language
 class Op {
 
-    private static Op[] code; // All the instructions in the current program
-
     // Give a source of the form "tgt_reg = fname(vals_1,...)" either build a
-    // call to a userdefined fun or to a builtin.
-    static Call mkCall(int tgt_reg, String fname, List<Object> vals) {
-        return Op.Builtin.isBuiltin(fname) ? new Op.Builtin(tgt_reg, fname, vals)
-                : new Op.Call(tgt_reg, fname, vals);
+    // call to a userdefined fun or, when builtin is a Builtins id, the opcode
+    // of that builtin.
+    static Call mkCall(int tgt_reg, String fname, int builtin, List<Object> vals) {
+        if (builtin < 0)
+            return new Op.Call(tgt_reg, fname, vals);
+        var def = Builtins.get(builtin);
+        if (def.arity() >= 0 && def.arity() != vals.size())
+            throw new RuntimeException(fname + " expects " + def.arity() + " arguments, got " + vals.size());
+        return switch (builtin) {
+            case Builtins.GET -> new GetOp(tgt_reg, vals);
+            case Builtins.SET -> new SetOp(tgt_reg, vals);
+            case Builtins.C -> vals.size() == 1 ? new MoveOp(tgt_reg, vals) : new COp(tgt_reg, vals);
+            case Builtins.ADD -> new AddOp(tgt_reg, vals);
+            case Builtins.SUB -> new SubOp(tgt_reg, vals);
+            case Builtins.LENGTH -> new LengthOp(tgt_reg, vals);
+            default -> new Intrinsic(tgt_reg, def, vals);
+        };
     }
 
-    static void set(Op[] code_) {
-        code = code_;
-    }
-
-    static int length() {
-        return code.length; // last nop nops
+    // the default exec function advance the pc
+    IState exec(IState in) {
+        return in.next();
     }
 
-    static int exitPC() {
-        var pos = code.length - 1;
-        while (!(code[pos] instanceof Exit))
-            pos--;
-        return pos;
+    // pcs that control can reach from this op at pc; a call reaches both the
+    // callee and its return site
+    int[] succs(int pc) {
+        return new int[] { pc + 1 };
     }
 
-    static Op get(int pc) {
-        return code[pc];
-    }
-
-    // the default exec function advance the pc
-    IState exec(IState in) {
-        return in.next(new int[] { in.pc() + 1 });
+    // map the pcs this op refers to through f, when code is moved
+    void retarget(IntUnaryOperator f) {
     }
 
     // Opcode for doing nothing
@@ -55,21 +56,41 @@ class Op {
         int targetRegister; // the register to write the result into
         String funName; // function's name
         List<Object> args; // argument lists
+        final int[] regs; // register of each argument, -1 for a constant
+        final Val[] consts; // constant arguments
         int entryPc; // pc of the body
 
         Call(int tgt_reg, String fname, List<Object> args) {
             this.targetRegister = tgt_reg;
             this.funName = fname;
             this.args = args;
+            regs = new int[args.size()];
+            consts = new Val[args.size()];
+            for (int i = 0; i < regs.length; i++) {
+                regs[i] = args.get(i) instanceof Integer r ? r : -1;
+                consts[i] = args.get(i) instanceof Val v ? v : null;
+            }
+        }
+
+        Val arg(IState in, int i) {
+            return regs[i] >= 0 ? in.getRegister(regs[i]) : consts[i];
         }
 
-        // Common behavior between userdef and builtin: marshall
-        // the arguments and dereference variables
+        // marshall the arguments into the state's buffer
         IState exec(IState in) {
-            var ps = new ArrayList<Val>();
-            for (var o : args)
-                ps.add(o instanceof Integer r ? in.getRegister(r) : o instanceof Val v ? v : null);
-            return in.push(entryPc, ps);
+            var ps = in.args(regs.length);
+            for (int i = 0; i < regs.length; i++)
+                ps[i] = arg(in, i);
+            return in.push(entryPc, ps, regs.length);
+        }
+
+        int[] succs(int pc) {
+            return new int[] { entryPc, pc + 1 };
+        }
+
+        void retarget(IntUnaryOperator f) {
+            if (!isbuiltin())
+                entryPc = f.applyAsInt(entryPc);
         }
 
         boolean isbuiltin() {
@@ -90,9 +111,11 @@ class Op {
     // analyses.
     static class Entry extends Op {
         String funName; // which function are we entering, handy for debugging
+        int frameSize; // number of registers used by the function
 
-        Entry(String fun) {
+        Entry(String fun, int frameSize) {
             this.funName = fun;
+            this.frameSize = frameSize;
         }
 
         public String toString() {
@@ -104,6 +127,7 @@ class Op {
     // Opcode for function return.
     static class Exit extends Op {
         String funName;
+        int[] callSites = new int[0]; // pcs of the calls to this function, set by the Compiler
 
         Exit(String fname) {
             this.funName = fname;
@@ -114,6 +138,10 @@ class Op {
             return in.pop(last);
         }
 
+        int[] succs(int pc) {
+            return new int[0];
+        }
+
         public String toString() {
             return "exit_" + funName;
         }
@@ -138,7 +166,15 @@ class Op {
         }
 
         IState exec(IState in) {
-            return in.next(new int[] { targetPc });
+            return in.jump(targetPc);
+        }
+
+        void retarget(IntUnaryOperator f) {
+            targetPc = f.applyAsInt(targetPc);
+        }
+
+        int[] succs(int pc) {
+            return new int[] { targetPc };
         }
 
         public String toString() {
@@ -148,38 +184,94 @@ class Op {
 
     // Opcode for a conditional branch
     static class Branch extends Op {
+        static final Val zero = Val.of(0);
+
         int guardRegister; // which register holds the value to branch on
         int targetPc; // where to jump
+        int elsePc = -1; // where to go otherwise, -1 for the next pc
 
         Branch(int guard, int falseBr) {
             this.guardRegister = guard;
             this.targetPc = falseBr;
         }
 
+        Branch(int guard, int falseBr, int elsePc) {
+            this(guard, falseBr);
+            this.elsePc = elsePc;
+        }
+
         // jump to targetPc if guardRegister is 0.
         IState exec(IState in) {
-            var v = in.getRegister(guardRegister);
-            var eq = v.eq(new Val(0));
-            var next = eq == BOOL.N ? new int[] { in.pc() + 1 }
-                    : eq == BOOL.Y ? new int[] { targetPc } : new int[] { in.pc() + 1, targetPc };
-            return in.next(next);
+            var other = elsePc < 0 ? in.pc() + 1 : elsePc;
+            return in.branch(in.getRegister(guardRegister).eq(zero), targetPc, other);
+        }
+
+        int[] succs(int pc) {
+            return new int[] { elsePc < 0 ? pc + 1 : elsePc, targetPc };
+        }
+
+        void retarget(IntUnaryOperator f) {
+            targetPc = f.applyAsInt(targetPc);
+            if (elsePc >= 0)
+                elsePc = f.applyAsInt(elsePc);
         }
 
         public String toString() {
-            return "if @" + guardRegister + " goto " + targetPc;
+            return "if @" + guardRegister + " goto " + targetPc + (elsePc < 0 ? "" : " else " + elsePc);
+        }
+    }
+
+    // A Branch whose guard is proven to be an int scalar
+    static final class IntBranch extends Branch {
+        IntBranch(int guard, int falseBr, int elsePc) {
+            super(guard, falseBr, elsePc);
+        }
+
+        IState exec(IState in) {
+            var other = elsePc < 0 ? in.pc() + 1 : elsePc;
+            return in.branch(in.getRegister(guardRegister).isZeroInt(), targetPc, other);
         }
     }
 
-    static class Builtin extends Call {
-        static String[] builtins = new String[] { "get", "c", "set", "add", "sub", "length" };
+    // Superinstruction for an add or sub whose result is branched on right
+    // away, as in a loop counter: tgt = op(a, b); if tgt is 0 goto targetPc
+    // else goto elsePc
+    static final class ArithBranch extends Op {
+        final Builtin arith; // an AddOp, SubOp, IntAddOp or IntSubOp
+        final boolean ints; // the result is an int scalar
+        int targetPc;
+        int elsePc;
 
-        static boolean isBuiltin(String funName) {
-            var ok = false;
-            for (var b : builtins)
-                ok |= b.equals(funName);
-            return ok;
+        ArithBranch(Builtin arith, int targetPc, int elsePc) {
+            this.arith = arith;
+            this.ints = arith instanceof IntAddOp || arith instanceof IntSubOp;
+            this.targetPc = targetPc;
+            this.elsePc = elsePc;
         }
 
+        IState exec(IState in) {
+            var v = arith.apply(in);
+            var zero = ints ? v.isZeroInt() : v.eq(Branch.zero);
+            return in.set(arith.targetRegister, v).branch(zero, targetPc, elsePc);
+        }
+
+        int[] succs(int pc) {
+            return new int[] { elsePc, targetPc };
+        }
+
+        void retarget(IntUnaryOperator f) {
+            targetPc = f.applyAsInt(targetPc);
+            elsePc = f.applyAsInt(elsePc);
+        }
+
+        public String toString() {
+            return arith + " if 0 goto " + targetPc + " else " + elsePc;
+        }
+    }
+
+    // Builtins are resolved by mkCall to one subclass each, with the arguments
+    // decoded into registers and constants up front.
+    static abstract class Builtin extends Call {
         Builtin(int tgt_reg, String fname, List<Object> args) {
             super(tgt_reg, fname, args);
         }
@@ -188,36 +280,173 @@ class Op {
             return true;
         }
 
+        int[] succs(int pc) {
+            return new int[] { pc + 1 };
+        }
+
+        // each subclass has its own exec so that the call to apply is static
+        abstract IState exec(IState in);
+
+        abstract Val apply(IState in);
+    }
+
+    static final class GetOp extends Builtin {
+        GetOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "get", args);
+        }
+
+        Val apply(IState in) {
+            return arg(in, 0).getVal(arg(in, 1));
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    static final class SetOp extends Builtin {
+        final boolean sameReg; // v = set(v, i, x)
+
+        SetOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "set", args);
+            sameReg = regs[0] == tgt_reg;
+        }
+
+        // with v unshared the vector is updated without a copy
+        Val apply(IState in) {
+            var vec = arg(in, 0);
+            return sameReg && in.canMutate(targetRegister) ? vec.setInPlace(arg(in, 1), arg(in, 2))
+                    : vec.set(arg(in, 1), arg(in, 2));
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    static final class COp extends Builtin {
+        COp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "c", args);
+        }
+
+        Val apply(IState in) {
+            var ps = new ArrayList<Val>(regs.length);
+            for (int i = 0; i < regs.length; i++)
+                ps.add(arg(in, i));
+            return Val.of(ps);
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    // c(x) is x, values are immutable and vectors are reference counted
+    static final class MoveOp extends Builtin {
+        MoveOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "c", args);
+        }
+
+        Val apply(IState in) {
+            return arg(in, 0);
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    static final class AddOp extends Builtin {
+        AddOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "add", args);
+        }
+
+        Val apply(IState in) {
+            return arg(in, 0).add(arg(in, 1));
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    static final class SubOp extends Builtin {
+        SubOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "sub", args);
+        }
+
+        Val apply(IState in) {
+            return arg(in, 0).sub(arg(in, 1));
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    // add and sub whose arguments are proven to be int scalars
+    static final class IntAddOp extends Builtin {
+        IntAddOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "add", args);
+        }
+
+        Val apply(IState in) {
+            return Val.addInts(arg(in, 0), arg(in, 1));
+        }
+
         IState exec(IState in) {
-            var ps = new ArrayList<Val>();
-            for (var o : args)
-                ps.add(o instanceof Integer r ? in.getRegister(r) : (Val) o);
-            Val res = null;
-            if (funName.equals("get")) {
-                var vec = ps.get(0);
-                var idx = ps.get(1);
-                res = vec.getVal(idx);
-            } else if (funName.equals("set")) {
-                var vec = ps.get(0);
-                var idx = ps.get(1);
-                var val = ps.get(2);
-                res = vec.set(idx, val);
-            } else if (funName.equals("c")) {
-                res = new Val(ps);
-            } else if (funName.equals("add")) {
-                var n1 = ps.get(0);
-                var n2 = ps.get(1);
-                res = n1.add(n2);
-            } else if (funName.equals("sub")) {
-                var n1 = ps.get(0);
-                var n2 = ps.get(1);
-                res = n1.sub(n2);
-            } else if (funName.equals("length")) {
-                var v1 = ps.get(0);
-                res = v1.size();
-            } else
-                throw new RuntimeException("Missin builtin " + funName);
-            return in.set(targetRegister, res).next(new int[] { in.pc() + 1 });
-        }
-    }
-}
\ No newline at end of file
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    static final class IntSubOp extends Builtin {
+        IntSubOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "sub", args);
+        }
+
+        Val apply(IState in) {
+            return Val.subInts(arg(in, 0), arg(in, 1));
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    static final class LengthOp extends Builtin {
+        LengthOp(int tgt_reg, List<Object> args) {
+            super(tgt_reg, "length", args);
+        }
+
+        Val apply(IState in) {
+            return arg(in, 0).size();
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+
+    // Any other registered builtin, dispatched through its Builtins.Def
+    static final class Intrinsic extends Builtin {
+        final Builtins.Def def;
+
+        Intrinsic(int tgt_reg, Builtins.Def def, List<Object> args) {
+            super(tgt_reg, def.name(), args);
+            this.def = def;
+        }
+
+        // the concrete kernel when all arguments are known, else the transfer
+        Val apply(IState in) {
+            var ps = new Val[regs.length]; // kernels expect exactly their arguments
+            var concrete = true;
+            for (int i = 0; i < regs.length; i++)
+                concrete &= (ps[i] = arg(in, i)).isConcrete();
+            return concrete ? def.concrete().apply(ps) : def.transfer().apply(ps);
+        }
+
+        IState exec(IState in) {
+            return in.set(targetRegister, apply(in)).next();
+        }
+    }
+}
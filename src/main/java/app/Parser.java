@@ -1,10 +1,8 @@
 package app;
 
-import java.io.File;
-import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 import java.util.Stack;
 
 import app.Parser.Tok.K;
@@ -94,20 +92,26 @@ public class Parser {
     Tokens in;
     Integer intValue = null;
     String stringValue = null;
-    int[] pos2line;
-    List<String> sourceLines;
+    Lexer lx;
 
     Parser(String file) {
-        try {
-            var scan = new Scanner(new File(file));
-            var tokenize = new Tokenizer(scan.useDelimiter("\\Z").next());
-            in = new Tokens(tokenize.tokenize());
-            pos2line = tokenize.p_to_l;
-            sourceLines = tokenize.lines;
-            scan.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);// Not much else to do.
-        }
+        this(Lexer.of(Path.of(file)));
+    }
+
+    Parser(Lexer lx) {
+        this.lx = lx;
+        var toks = new ArrayList<Tok>(lx.count());
+        for (int i = 0; i < lx.count(); i++)
+            toks.add(new Tok(K.values()[lx.kind(i)], lx.text(i), lx.offset(i)));
+        in = new Tokens(toks);
+    }
+
+    int line(int offset) {
+        return lx.line(offset);
+    }
+
+    String source(int offset) {
+        return lx.lineText(lx.line(offset));
     }
 
     Prog parse() {
@@ -152,7 +156,7 @@ public class Parser {
                 break;
         }
         eat(")");
-        return new Call(vnm, fnm, vals, pos2line[head], sourceLines.get(pos2line[head]));
+        return new Call(vnm, fnm, vals, line(head), source(head));
     }
 
     Val parseVal() {
@@ -173,7 +177,7 @@ public class Parser {
         var v = parseVal();
         eat(")");
         var stmts = parseStatements();
-        return new If(v, stmts, pos2line[head], sourceLines.get(pos2line[head]));
+        return new If(v, stmts, line(head), source(head));
     }
 
     While parseWhile() {
@@ -184,7 +188,7 @@ public class Parser {
         var v = parseVal();
         eat(")");
         var s = parseStatements();
-        return new While(v, s, pos2line[head], sourceLines.get(pos2line[head]));
+        return new While(v, s, line(head), source(head));
     }
 
     List<Stmt> parseStatements() {
@@ -252,7 +256,7 @@ public class Parser {
     }
 
     String failMsg() {
-        var msg = "Failed at pos " + in.position();
+        var msg = in.hasNext() ? "Failed at line " + (line(in.position()) + 1) : "Failed at end of file";
         for (int i = 0; i < 7; i++)
             if (in.hasNext())
                 msg += " " + in.next().v();
@@ -263,7 +267,7 @@ public class Parser {
         throw new ParseError(failMsg());
     }
 
-    class ParseError extends Error {
+    static class ParseError extends Error {
         ParseError(String msg) {
             super(msg);
         }
@@ -389,165 +393,4 @@ public class Parser {
             return false;
         }
     }
-
-    static class Tokenizer {
-        int pos = 0;
-        String ln;
-        String read;
-        int lineNum = 0;
-        List<String> lines = new ArrayList<String>();
-        int[] p_to_l;
-
-        Tokenizer(String ln) {
-            this.ln = ln;
-            p_to_l = new int[ln.length()];
-            var p = 0;
-            var n = 0;
-            while (true) {
-                if (n == ln.length() || ln.charAt(n) == '\n') {
-                    for (int i = p; i < n; i++)
-                        p_to_l[i] = lines.size();
-                    lines.add(ln.substring(p, n));
-                    if (n == ln.length())
-                        break;
-                    p = n + 1;
-                }
-                n++;
-            }
-        }
-
-        boolean spaces() {
-            var start = pos;
-            while (!eof() && Character.isWhitespace(cur())) {
-                if (cur() == '\n')
-                    lineNum++;
-                pos++;
-            }
-            return start != pos;
-        }
-
-        boolean num() {
-            var start = pos;
-            int digits = 0;
-            while (!eof() && (Character.isDigit(cur()) || cur() == '.')) {
-                if (cur() == '.')
-                    digits++;
-                pos++;
-            }
-            if (digits > 1 || start == pos) {
-                start = pos;
-                return false;
-            }
-            read = ln.substring(start, pos);
-            if (canPeek() && Character.isAlphabetic(cur())) {
-                pos = start;
-                return false;
-            }
-            return true;
-        }
-
-        boolean comment() {
-            var start = pos;
-            if (!eof() && cur() == '#') {
-                pos++;
-                while (!eof() && cur() != '\n') {
-                    pos++;
-                }
-            }
-            return start != pos;
-        }
-
-        boolean str() {
-            var start = pos;
-            if (!eof() && cur() == '"') {
-                pos++;
-                while (!eof() && cur() != '"')
-                    pos++;
-                if (pos < ln.length())
-                    pos++;
-            }
-            if (start + 1 < pos - 1)
-                read = ln.substring(start + 1, pos - 1);
-            return start != pos;
-        }
-
-        boolean hasIdChar() {
-            if (cur() == '\\') {
-                var c = peek();
-                return c == ':' || c == ' ';
-            } else {
-                var c = cur();
-                return Character.isAlphabetic(c) || Character.isDigit(c) || c == '_' || c == '.';
-            }
-        }
-
-        void eatIdChar() {
-            pos += cur() == '\\' ? 2 : 1;
-        }
-
-        boolean id() {
-            var start = pos;
-            if (!eof() && hasIdChar() && !Character.isDigit(cur())) {
-                eatIdChar();
-                while (!eof() && hasIdChar())
-                    eatIdChar();
-            }
-            read = ln.substring(start, pos);
-            return start != pos;
-        }
-
-        boolean read(String key) {
-            var start = pos;
-            for (int i = 0; i < key.length(); i++) {
-                if (pos == ln.length() || ln.charAt(pos++) != key.charAt(i)) {
-                    pos = start;
-                    return false;
-                }
-            }
-            return true;
-        }
-
-        char next() {
-            return ln.charAt(++pos);
-        }
-
-        char peek() {
-            return ln.charAt(pos + 1);
-        }
-
-        char cur() {
-            return ln.charAt(pos);
-        }
-
-        boolean canPeek() {
-            return pos + 1 < ln.length();
-        }
-
-        boolean eof() {
-            return pos >= ln.length();
-        }
-
-        String[] delims = new String[] { ":", ",", "=", "|", "(", ")", "[", "]", "{", "}", "?", "*", "-" };
-
-        ArrayList<Tok> tokenize() {
-            var tokens = new ArrayList<Tok>();
-            A: while (!eof()) {
-                comment();
-                spaces();
-                if (num())
-                    tokens.add(new Tok(K.NUM, read, pos));
-                else if (str())
-                    tokens.add(new Tok(K.STR, read, pos));
-                else if (id())
-                    tokens.add(new Tok(K.IDENT, read, pos));
-                else
-                    for (String delim : delims)
-                        if (read(delim)) {
-                            tokens.add(new Tok(K.DELIM, delim, pos));
-                            continue A;
-                        }
-            }
-            return tokens;
-        }
-    }
-}
\ No newline at end of file
+}
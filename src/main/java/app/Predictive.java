@@ -0,0 +1,181 @@
+package app;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import app.Parser.Call;
+import app.Parser.Fun;
+import app.Parser.If;
+import app.Parser.Kind;
+import app.Parser.ParseError;
+import app.Parser.Prog;
+import app.Parser.Stmt;
+import app.Parser.While;
+
+// Builds the same tree as Parser but decides every production on the next
+// token alone, so nothing is ever undone. It reads the Lexer's arrays through
+// a cursor, there are no Tok objects and no mark stacks.
+//
+//   prog  := fun* 'prog' stmts
+//   fun   := 'fun' ID '(' ids ')' stmts
+//   stmts := stmt* 'end'
+//   stmt  := 'if' '(' val ')' stmts | 'while' '(' val ')' stmts
+//          | ID '=' ID '(' vals ')'
+class Predictive {
+    private final Lexer lx;
+    private int tok; // the next token
+
+    Predictive(Lexer lx) {
+        this(lx, 0);
+    }
+
+    // parse from token start on
+    Predictive(Lexer lx, int start) {
+        this.lx = lx;
+        this.tok = start;
+    }
+
+    static Prog parse(Path file) {
+        return new Predictive(Lexer.of(file)).parse();
+    }
+
+    Prog parse() {
+        var funs = new ArrayList<Fun>();
+        while (at("fun"))
+            funs.add(parseFun());
+        eat("prog");
+        return new Prog(funs, parseStatements());
+    }
+
+    // main's body, from the 'prog' token on
+    List<Stmt> parseMain() {
+        eat("prog");
+        return parseStatements();
+    }
+
+    // The first token of every top level function followed by that of
+    // 'prog', found by counting blocks. Null when the file is not of that
+    // shape. A keyword only counts where a statement can start, that is not
+    // after '(', ',', '=' or 'fun'.
+    static int[] split(Lexer lx) {
+        var starts = new ArrayList<Integer>();
+        var depth = 0;
+        for (int t = 0; t < lx.count(); t++) {
+            if (lx.kind(t) != Lexer.IDENT || t > 0 && (lx.is(t - 1, "(") || lx.is(t - 1, ",") || lx.is(t - 1, "=") || lx.is(t - 1, "fun")))
+                continue;
+            if (depth == 0 && lx.is(t, "prog")) {
+                starts.add(t);
+                return starts.stream().mapToInt(i -> i).toArray();
+            } else if (depth == 0 && lx.is(t, "fun")) {
+                starts.add(t);
+                depth++;
+            } else if (depth == 0)
+                return null;
+            else if (lx.is(t, "if") || lx.is(t, "while"))
+                depth++;
+            else if (lx.is(t, "end"))
+                depth--;
+        }
+        return null;
+    }
+
+    Fun parseFun() {
+        eat("fun");
+        var nm = id();
+        eat("(");
+        var args = new ArrayList<String>();
+        while (kind() == Lexer.IDENT) {
+            args.add(id());
+            if (!at(","))
+                break;
+            tok++;
+        }
+        eat(")");
+        return new Fun(nm, args, parseStatements());
+    }
+
+    // the body ends with 'end', or at the end of the file
+    List<Stmt> parseStatements() {
+        var stmts = new ArrayList<Stmt>();
+        while (tok < lx.count() && !at("end"))
+            stmts.add(parseStatement());
+        if (tok < lx.count())
+            tok++; // end
+        return stmts;
+    }
+
+    Stmt parseStatement() {
+        var head = lx.offset(tok);
+        var line = lx.line(head);
+        if (at("if") || at("while")) {
+            var isIf = at("if");
+            tok++;
+            eat("(");
+            var v = val();
+            eat(")");
+            var body = parseStatements();
+            return isIf ? new If(v, body, line, lx.lineText(line)) : new While(v, body, line, lx.lineText(line));
+        }
+        var vnm = id();
+        eat("=");
+        var fnm = id();
+        eat("(");
+        var vals = new ArrayList<Parser.Val>();
+        while (!at(")")) {
+            vals.add(val());
+            if (!at(","))
+                break;
+            tok++;
+        }
+        eat(")");
+        return new Call(vnm, fnm, vals, line, lx.lineText(line));
+    }
+
+    Parser.Val val() {
+        var k = kind();
+        if (k == Lexer.NUM) {
+            var s = lx.text(tok);
+            try {
+                Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                fail("an integer");
+            }
+            tok++;
+            return new Parser.Val(Kind.NUM, s);
+        } else if (k == Lexer.STR)
+            return new Parser.Val(Kind.STR, lx.text(tok++));
+        else if (k == Lexer.IDENT)
+            return new Parser.Val(Kind.ID, lx.text(tok++));
+        fail("a value");
+        return null;
+    }
+
+    String id() {
+        if (kind() != Lexer.IDENT)
+            fail("a name");
+        return lx.text(tok++);
+    }
+
+    void eat(String s) {
+        if (!at(s))
+            fail("'" + s + "'");
+        tok++;
+    }
+
+    // keywords and delimiters, never the contents of a string
+    boolean at(String s) {
+        return tok < lx.count() && lx.kind(tok) != Lexer.STR && lx.is(tok, s);
+    }
+
+    // -1 at the end of the file
+    int kind() {
+        return tok < lx.count() ? lx.kind(tok) : -1;
+    }
+
+    void fail(String expected) {
+        if (tok >= lx.count())
+            throw new ParseError("Expected " + expected + " at end of file");
+        throw new ParseError("Expected " + expected + " at line " + (lx.line(lx.offset(tok)) + 1) + " got " + lx.text(tok));
+    }
+}
@@ -0,0 +1,109 @@
+package app;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Interleaves many Concrete engines on a few carrier threads. A carrier takes
+// the task at the head of the run queue, runs it for one slice of steps and
+// puts it back at the tail, so a runaway loop only ever delays the others by
+// a slice. Each task has a step quota; once that is spent the task fails.
+class Scheduler implements AutoCloseable {
+
+    static class Task {
+        private final Concrete engine;
+        private long quota; // steps left, only touched by the carrier running the task
+        private volatile boolean cancelled;
+        final CompletableFuture<Val> result = new CompletableFuture<>();
+
+        private Task(Concrete engine, long quota) {
+            this.engine = engine;
+            this.quota = quota;
+        }
+
+        // the task stops at the end of its current slice
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final int slice;
+    private final LinkedBlockingQueue<Task> ready = new LinkedBlockingQueue<>();
+    private final Thread[] carriers;
+    private volatile boolean closed;
+
+    Scheduler(int carriers, int slice) {
+        if (carriers < 1 || slice < 1)
+            throw new RuntimeException("need at least one carrier and a positive slice");
+        this.slice = slice;
+        this.carriers = new Thread[carriers];
+        for (int i = 0; i < carriers; i++) {
+            var t = new Thread(this::carry, "carrier-" + i);
+            t.setDaemon(true);
+            this.carriers[i] = t;
+            t.start();
+        }
+    }
+
+    // once closed the task comes back cancelled
+    Task submit(CodeUnit code, long quota) {
+        if (quota < 0)
+            throw new RuntimeException("step quota must not be negative");
+        var t = new Task(new Concrete(code, true), quota);
+        requeue(t);
+        return t;
+    }
+
+    private void carry() {
+        try {
+            while (true)
+                step(ready.take());
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            drain();
+        }
+    }
+
+    // run t for one slice, then finish it or queue it again
+    private void step(Task t) {
+        if (t.cancelled || t.result.isDone() || closed) { // result.cancel() stops it too
+            t.result.cancel(false);
+            return;
+        }
+        var n = (int) Math.min(slice, t.quota);
+        boolean done;
+        try {
+            done = t.engine.run(n);
+        } catch (Throwable e) { // a StackOverflowError fails the task, not the carrier
+            t.result.completeExceptionally(e);
+            return;
+        }
+        t.quota -= n;
+        if (done)
+            t.result.complete(t.engine.in.last());
+        else if (t.quota == 0)
+            t.result.completeExceptionally(new RuntimeException("step quota exhausted"));
+        else
+            requeue(t);
+    }
+
+    // close may have drained the queue while t was running or being
+    // submitted, so look again after adding it
+    private void requeue(Task t) {
+        ready.add(t);
+        if (closed)
+            drain();
+    }
+
+    private void drain() {
+        for (Task t; (t = ready.poll()) != null;)
+            t.result.cancel(false);
+    }
+
+    public void close() {
+        closed = true;
+        for (var t : carriers)
+            t.interrupt();
+        drain();
+    }
+}
@@ -0,0 +1,43 @@
+package app;
+
+// Uses the results of the abstract interpreter to specialise a program. When
+// every state reaching an add, a sub or a branch holds int scalars in its
+// operands, the op is replaced by a version that skips the type checks and
+// works on the ints directly. Anything not proven, including code the
+// analysis never reaches, keeps the general op.
+class Specializer {
+
+    static CodeUnit specialize(CodeUnit code) {
+        var a = new Abstract(code);
+        a.analyze();
+        var ops = new Op[code.length()];
+        var lines = new int[code.length()];
+        for (int pc = 0; pc < ops.length; pc++) {
+            ops[pc] = a.seen.get(pc) ? specialize(code.get(pc), a.astates[pc]) : code.get(pc);
+            lines[pc] = code.line(pc);
+        }
+        return new CodeUnit(ops, code.mainEntryPC, lines);
+    }
+
+    // op specialised for the states described by in, or op itself
+    static Op specialize(Op op, IState in) {
+        if (op instanceof Op.ArithBranch ab) {
+            var arith = specialize(ab.arith, in);
+            return arith == ab.arith ? op : new Op.ArithBranch((Op.Builtin) arith, ab.targetPc, ab.elsePc);
+        }
+        if (op instanceof Op.AddOp c && ints(c, in))
+            return new Op.IntAddOp(c.targetRegister, c.args);
+        if (op instanceof Op.SubOp c && ints(c, in))
+            return new Op.IntSubOp(c.targetRegister, c.args);
+        if (op instanceof Op.Branch b && !(op instanceof Op.IntBranch) && in.getRegister(b.guardRegister).isInt())
+            return new Op.IntBranch(b.guardRegister, b.targetPc, b.elsePc);
+        return op;
+    }
+
+    private static boolean ints(Op.Builtin c, IState in) {
+        for (int i = 0; i < c.regs.length; i++)
+            if (!c.arg(in, i).isInt())
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package app;
+
+import java.util.concurrent.locks.LockSupport;
+
+// A Listener that prints a trace of the execution. The interpreter thread
+// only records a trace() of the state into a ring buffer, which leaves the
+// values as they were; formatting and printing happen on a background
+// thread. There must be a single producer thread.
+class Tracer implements Listener, AutoCloseable {
+    private final int mask;
+    private final int[] pcs;
+    private final Op[] ops;
+    private final Object[] states;
+    private final String[] tags;
+    private volatile long head; // next slot to write, owned by the producer
+    private volatile long tail; // next slot to print, owned by the printer
+    private volatile boolean closed;
+    private final Thread printer;
+
+    Tracer() {
+        this(1 << 12);
+    }
+
+    // capacity must be a power of two
+    Tracer(int capacity) {
+        mask = capacity - 1;
+        pcs = new int[capacity];
+        ops = new Op[capacity];
+        states = new Object[capacity];
+        tags = new String[capacity];
+        printer = new Thread(this::drain, "tracer");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    public void step(int pc, Op op, IState out) {
+        note(pc, op, out, null);
+    }
+
+    // record a step whose line ends with tag
+    void note(int pc, Op op, IState st, String tag) {
+        while (head - tail > mask) // full, wait for the printer
+            Thread.onSpinWait();
+        var i = (int) head & mask;
+        pcs[i] = pc;
+        ops[i] = op;
+        states[i] = st.trace();
+        tags[i] = tag;
+        head = head + 1; // publishes the slot
+    }
+
+    private void drain() {
+        while (!closed || tail != head) {
+            if (tail == head) {
+                LockSupport.parkNanos(100_000);
+                continue;
+            }
+            var i = (int) tail & mask;
+            var s = App.pad(pcs[i] + " : ", 6) + App.pad(ops[i] + " ", 14);
+            App.p(tags[i] == null ? s + states[i] : s + App.pad(states[i] + " ", 40) + tags[i]);
+            ops[i] = null;
+            states[i] = null;
+            tail = tail + 1;
+        }
+    }
+
+    // print what is left and stop the printer
+    public void close() {
+        closed = true;
+        try {
+            printer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package app;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import app.Val.BOOL;
 
@@ -11,47 +16,196 @@ class Val {
         Y, N, M // Yes, No, Maybe
     };
 
-    static Val bot = new Val();
-    static Val top = new Val(Range.top, Type.top);
-    private static Val anyInt = new Val(Range.mkScalar(), Type.mkInt());
+    // Values are hash-consed: all but int vectors are built through canon()
+    // so that equal values share one instance. The table is a concurrent map
+    // of weak references, so analyses on many threads intern without a lock
+    // and values of finished analyses can be collected.
+    //
+    // All fields are final and a value never changes, with one exception:
+    // an int vector. setInPlace writes its ints array and refs counts the
+    // registers holding it, both without synchronisation. Such a vector is
+    // confined to the thread running that interpreter; anything that hands it
+    // elsewhere shares it first, after which it is never written again. Map
+    // vectors are not updated in place, set copies the map, which is O(n).
+    private static final ConcurrentHashMap<Ref, Ref> table = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Val> cleared = new ReferenceQueue<>();
+    private static final int SMALL_MIN = -128, SMALL_MAX = 1024;
+    private static final Val[] small = new Val[SMALL_MAX - SMALL_MIN];
+
+    static final Val bot = mk(Range.mk(), Type.mk());
+    static final Val top = mk(Range.top, Type.top);
+    private static final Val anyInt = mk(Range.mkScalar(), Type.mkInt());
+
+    static {
+        for (int i = 0; i < small.length; i++)
+            small[i] = canon(Range.mkScalar(), Type.mkInt(), Map.of(), i + SMALL_MIN, null);
+    }
+
+    private final Range r;
+    private final Type t;
+    private final Map<Integer, Val> values; // unmodifiable
+    private final Integer ifScalarNum;
+    private final String ifScalarString;
+    private final int[] ints; // elements of a concrete int vector, values is then empty
+    private int refs; // registers holding this int vector, SHARED once aliased elsewhere, not final
+    private final boolean canonical; // the instance in the table
+    private final int hash; // of all but ints, element hashes are cached so this is O(size)
+
+    static final int SHARED = Integer.MAX_VALUE;
+
+    private Val(Range r, Type t, Map<Integer, Val> values, Integer num, String str, int[] ints) {
+        this(r, t, values, num, str, ints, false);
+    }
+
+    private Val(Range r, Type t, Map<Integer, Val> values, Integer num, String str, int[] ints, boolean canonical) {
+        this.canonical = canonical;
+        this.r = r;
+        this.t = t;
+        this.values = values;
+        this.ifScalarNum = num;
+        this.ifScalarString = str;
+        this.ints = ints;
+        this.hash = Objects.hash(r, t, num, str, values);
+    }
 
-    private Range r = Range.mk();
-    private Type t = Type.mk();
-    private Map<Integer, Val> values = new HashMap<Integer, Val>();
-    private Integer ifScalarNum;
-    private String ifScalarString;
+    private Val(int v) {
+        this(Range.mkScalar(), Type.mkInt(), Map.of(), v, null, null);
+    }
 
-    Val(int v) {
-        r = Range.mkScalar();
-        t = Type.mkInt();
-        ifScalarNum = v;
+    private Val(int[] ints) {
+        this(Range.of(0, ints.length), Type.mkInt(), Map.of(), null, null, ints);
     }
 
-    Val(String s) {
-        r = Range.mkScalar();
-        t = Type.mkStr();
-        ifScalarString = s;
+    static Val of(int v) {
+        return v >= SMALL_MIN && v < SMALL_MAX ? small[v - SMALL_MIN] : new Val(v);
     }
 
-    Val(List<Val> vals) {
+    static Val of(String s) {
+        return canon(Range.mkScalar(), Type.mkStr(), Map.of(), null, s);
+    }
+
+    // c(...) has one element per argument; when every argument is a known
+    // int the result is kept flat
+    static Val of(List<Val> vals) {
         if (vals.size() == 0)
             throw new RuntimeException("arrays can't be zero length");
-        var v = vals.get(0);
-        t = v.t;
-        r = new Range(0, vals.size());
-        if (isScalar() == BOOL.Y) {
-            ifScalarNum = v.ifScalarNum;
-        } else
-            for (int i = 0; i < vals.size(); i++)
-                values.put(i, vals.get(i));
+        if (vals.size() == 1) // values are immutable, c(v) is v
+            return vals.get(0);
+        var flat = flatInts(vals);
+        if (flat != null)
+            return new Val(flat);
+        var vs = new HashMap<Integer, Val>();
+        for (int i = 0; i < vals.size(); i++) {
+            vals.get(i).share();
+            vs.put(i, vals.get(i));
+        }
+        return canon(Range.of(0, vals.size()), vals.get(0).t, Map.copyOf(vs), null, null);
+    }
+
+    private static Val mk(Range r, Type t) {
+        return canon(r, t, Map.of(), null, null);
+    }
+
+    // the canonical value with these fields; the candidate is built
+    // canonical, and dropped unseen when an equal value is already there
+    private static Val canon(Range r, Type t, Map<Integer, Val> values, Integer num, String str) {
+        for (Ref x; (x = (Ref) cleared.poll()) != null;)
+            table.remove(x);
+        var v = new Val(r, t, values, num, str, null, true);
+        var ref = new Ref(v);
+        while (true) {
+            var old = table.putIfAbsent(ref, ref);
+            if (old == null)
+                return v;
+            var c = old.get();
+            if (c != null)
+                return c;
+            table.remove(old, old); // collected since the lookup
+        }
     }
 
-    private Val() {
+    // A key of the table, compared by the value it refers to. Once cleared it
+    // only equals itself, so the queue can remove it.
+    private static final class Ref extends WeakReference<Val> {
+        private final int hash;
+
+        Ref(Val v) {
+            super(v, cleared);
+            hash = v.hashCode();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Ref x) || x.hash != hash)
+                return false;
+            var v = get();
+            var w = x.get();
+            return v != null && w != null && v.sameAs(w);
+        }
     }
 
-    private Val(Range r, Type t) {
-        this.r = r;
-        this.t = t;
+    // the ints of vals, or null if one of them isn't a known int scalar
+    private static int[] flatInts(List<Val> vals) {
+        var res = new int[vals.size()];
+        for (int i = 0; i < res.length; i++)
+            if (vals.get(i).isConcreteInt())
+                res[i] = vals.get(i).ifScalarNum;
+            else
+                return null;
+        return res;
+    }
+
+    // Reference counts of int vectors, the only values that are ever updated
+    // in place. Registers retain and release what they hold; any other alias
+    // makes the vector SHARED for good.
+    void retain() {
+        if (ints != null && refs != SHARED)
+            refs++;
+    }
+
+    void release() {
+        if (ints != null && refs != SHARED && refs > 0)
+            refs--;
+    }
+
+    void share() {
+        if (ints != null)
+            refs = SHARED;
+    }
+
+    // this value as it is now: an int vector that may still be updated in
+    // place is copied, leaving its reference count alone
+    Val frozen() {
+        return ints != null && refs != SHARED ? new Val(ints.clone()) : this;
+    }
+
+    // true if at most one register holds this vector
+    boolean unshared() {
+        return ints != null && refs <= 1;
+    }
+
+    private boolean isConcreteInt() {
+        return ints == null && ifScalarNum != null && isScalar() == BOOL.Y && isNum() == BOOL.Y;
+    }
+
+    // element i, reading through either representation
+    private Val elem(int i) {
+        return ints != null ? of(ints[i]) : values.get(i);
+    }
+
+    // the elements as a map, used when merging into the abstract form
+    private Map<Integer, Val> elems() {
+        if (ints == null)
+            return values;
+        var res = new HashMap<Integer, Val>();
+        for (int i = 0; i < ints.length; i++)
+            res.put(i, of(ints[i]));
+        return Map.copyOf(res);
     }
 
     static Val merge(Val l, Val r) {
@@ -61,6 +215,8 @@ class Val {
             return l;
         if (l.isTop() || r.isTop())
             return top;
+        if (l.equals(r))
+            return l;
         var ty = Type.merge(l.t, r.t);
         var ra = Range.merge(l.r, r.r);
         var si = l.ifScalarNum != null && r.ifScalarNum != null && l.ifScalarNum.equals(r.ifScalarNum)
@@ -69,19 +225,47 @@ class Val {
         var ss = l.ifScalarString != null && r.ifScalarString != null && l.ifScalarString.equals(r.ifScalarString)
                 ? l.ifScalarString
                 : null;
-        var res = new Val(ra, ty);
-        res.ifScalarNum = si;
-        res.ifScalarString = ss;
-        for (var k : l.values.keySet())
-            if (r.values.containsKey(k))
-                res.values.put(k, Val.merge(l.values.get(k), r.values.get(k)));
-        for (var k : l.values.keySet())
-            if (!r.values.containsKey(k))
-                res.values.put(k, new Val(Range.top, l.values.get(k).t));
-        for (var k : r.values.keySet())
-            if (!l.values.containsKey(k))
-                res.values.put(k, new Val(Range.top, r.values.get(k).t));
-        return res;
+        var lvs = l.elems();
+        var rvs = r.elems();
+        var vs = new HashMap<Integer, Val>();
+        for (var k : lvs.keySet())
+            if (rvs.containsKey(k))
+                vs.put(k, Val.merge(lvs.get(k), rvs.get(k)));
+        for (var k : lvs.keySet())
+            if (!rvs.containsKey(k))
+                vs.put(k, mk(Range.top, lvs.get(k).t));
+        for (var k : rvs.keySet())
+            if (!lvs.containsKey(k))
+                vs.put(k, mk(Range.top, rvs.get(k).t));
+        return canon(ra, ty, Map.copyOf(vs), si, ss);
+    }
+
+    // Merge that sends a growing range straight to unbounded, so that values
+    // at loop heads stabilise after a bounded number of iterations.
+    static Val widen(Val l, Val r) {
+        var m = merge(l, r);
+        if (l.isBot() || m.isTop() || m.equals(l))
+            return m;
+        var ra = Range.widen(l.r, m.r);
+        var vs = new HashMap<Integer, Val>();
+        if (ra.to != Integer.MAX_VALUE) { // elements are only kept for bounded ranges
+            var lvs = l.elems();
+            for (var e : m.values.entrySet())
+                vs.put(e.getKey(), lvs.containsKey(e.getKey()) ? widen(lvs.get(e.getKey()), e.getValue()) : e.getValue());
+        }
+        return canon(ra, Type.widen(l.t, m.t), Map.copyOf(vs), m.ifScalarNum, m.ifScalarString);
+    }
+
+    // Refine a widened l with r recomputed from it: unbounded parts of l take
+    // the bounds of r.
+    static Val narrow(Val l, Val r) {
+        if (l.isBot() || l.isTop() || r.isBot() || r.isTop())
+            return r;
+        var ra = Range.narrow(l.r, r.r);
+        var ty = Type.narrow(l.t, r.t);
+        if (ra.equals(r.r) && ty.equals(r.t))
+            return r;
+        return canon(ra, ty, r.elems(), r.ifScalarNum, r.ifScalarString);
     }
 
     BOOL isScalar() {
@@ -89,6 +273,8 @@ class Val {
     }
 
     boolean isConcrete() {
+        if (ints != null)
+            return true;
         var notC = isBot() || isTop() || r.isTop() || r.isBot() || t.isTop() || t.isBot();
         if (!notC && isScalar() == BOOL.N) {
             for (int i = 0; i < r.to; i++)
@@ -119,14 +305,16 @@ class Val {
         if (in == BOOL.Y) {
             if (isScalar() == BOOL.Y) // idx==0
                 return this;
+            if (ints != null)
+                return of(ints[idx]);
             if (values.containsKey(idx))
                 return values.get(idx);
             else
-                return new Val(Range.mkScalar(), t);
+                return mk(Range.mkScalar(), t);
         } else if (in == BOOL.N) {
             throw new RuntimeException("indexing error"); // perhaps return an error?
         } else { // BOOL.M
-            return new Val(Range.mkScalar(), t);
+            return mk(Range.mkScalar(), t);
         }
     }
 
@@ -136,6 +324,12 @@ class Val {
         return ifScalarNum;
     }
 
+    String asStr() {
+        if (isScalar() != BOOL.Y || isStr() != BOOL.Y)
+            throw new RuntimeException("check that the value is a str before calling asStr");
+        return ifScalarString;
+    }
+
     Val set(Val index, Val val) {
         if (isBot() || index.isBot())
             return bot;
@@ -144,19 +338,35 @@ class Val {
         if (index.isNum() == BOOL.M)
             return top;
         if (index.isScalar() != BOOL.Y)
-            return new Val(Range.top, t);
+            return mk(Range.top, t);
         var idx = index.asNum();
         var in = idx == null ? BOOL.M : r.in(idx);
         if (in == BOOL.Y) {
-            var res = clone();
-            res.values.put(idx, val);
-            return res;
+            if (ints != null && val.isConcreteInt()) {
+                var res = new Val(ints.clone());
+                res.ints[idx] = val.ifScalarNum;
+                return res;
+            }
+            var vs = new HashMap<>(elems());
+            vs.put(idx, val);
+            val.share();
+            return canon(r, t, Map.copyOf(vs), ifScalarNum, ifScalarString);
         } else if (in == BOOL.N)
             throw new RuntimeException("array out of bounds");
         else // BOOL.M
             return top;
     }
 
+    // like set but writes into this vector when it is an int vector and val
+    // an int; only valid when the caller holds the sole reference
+    Val setInPlace(Val index, Val val) {
+        if (ints != null && index.isConcreteInt() && val.isConcreteInt() && r.in(index.ifScalarNum) == BOOL.Y) {
+            ints[index.ifScalarNum] = val.ifScalarNum;
+            return this;
+        }
+        return set(index, val);
+    }
+
     Val size() {
         if (isBot())
             return bot;
@@ -166,7 +376,42 @@ class Val {
             return bot;
         if (r.isTop())
             return anyInt;
-        return new Val(r.size());
+        return of(r.size());
+    }
+
+    // sorted copy of an int vector
+    Val sort() {
+        if (isBot() || isTop())
+            return this;
+        if (isNum() == BOOL.N)
+            return bot;
+        if (ints != null) {
+            var res = ints.clone();
+            Arrays.sort(res);
+            return new Val(res);
+        }
+        if (isConcreteInt())
+            return this;
+        return mk(r, t); // same shape, unknown order
+    }
+
+    // largest element of an int vector
+    Val max() {
+        if (isBot())
+            return bot;
+        if (isTop())
+            return top;
+        if (isNum() == BOOL.N)
+            return bot;
+        if (ints != null) {
+            var m = ints[0];
+            for (var i : ints)
+                m = Math.max(m, i);
+            return of(m);
+        }
+        if (isConcreteInt())
+            return this;
+        return anyInt;
     }
 
     Val sub(Val r_) {
@@ -186,9 +431,9 @@ class Val {
         var lv = l_.asNum();
         var rv = r_.asNum();
         if (lv != null && rv != null)
-            return new Val(lv - rv);
+            return of(lv - rv);
         else
-            return new Val(Range.mkScalar(), Type.mkInt());
+            return anyInt;
     }
 
     Val add(Val r) {
@@ -208,9 +453,9 @@ class Val {
         var lv = l.asNum();
         var rv = r.asNum();
         if (lv != null && rv != null)
-            return new Val(lv + rv);
+            return of(lv + rv);
         else
-            return new Val(Range.mkScalar(), Type.mkInt());
+            return anyInt;
     }
 
     BOOL eq(Val r_) {
@@ -223,14 +468,14 @@ class Val {
             return BOOL.N;
         if (l_.isNum() == BOOL.M || r_.isNum() == BOOL.M)
             return BOOL.M;
-        if (l_.isScalar() == BOOL.N || r.isScalar() == BOOL.N)
+        if (l_.isScalar() == BOOL.N || r_.isScalar() == BOOL.N)
             return BOOL.N;
-        if (l_.isScalar() == BOOL.M || r.isScalar() == BOOL.M)
+        if (l_.isScalar() == BOOL.M || r_.isScalar() == BOOL.M)
             return BOOL.M;
         var lv = l_.asNum();
         var rv = r_.asNum();
         if (lv != null && rv != null)
-            return lv == rv ? BOOL.Y : BOOL.N;
+            return lv.equals(rv) ? BOOL.Y : BOOL.N;
         else
             return BOOL.M;
     }
@@ -239,44 +484,53 @@ class Val {
         return t.isNum();
     }
 
+    // an int scalar, known or not
+    boolean isInt() {
+        return !isBot() && !isTop() && isScalar() == BOOL.Y && isNum() == BOOL.Y;
+    }
+
+    // add, sub and eq(0) on values proven isInt, where all that is left of the
+    // checks of the general versions is whether the ints are known
+    static Val addInts(Val l, Val r) {
+        return l.ifScalarNum != null && r.ifScalarNum != null ? of(l.ifScalarNum + r.ifScalarNum) : anyInt;
+    }
+
+    static Val subInts(Val l, Val r) {
+        return l.ifScalarNum != null && r.ifScalarNum != null ? of(l.ifScalarNum - r.ifScalarNum) : anyInt;
+    }
+
+    BOOL isZeroInt() {
+        return ifScalarNum == null ? BOOL.M : ifScalarNum == 0 ? BOOL.Y : BOOL.N;
+    }
+
     BOOL isStr() {
         return t.isStr();
     }
 
     boolean isTop() {
-        return equals(top);
+        return this == top;
     }
 
     boolean isBot() {
-        return equals(bot);
+        return this == bot;
     }
 
-    public Val clone() {
-        var res = new Val();
-        res.r = r;
-        res.t = t;
-        for (var k : values.keySet())
-            res.values.put(k, values.get(k));
-        res.ifScalarNum = ifScalarNum;
-        res.ifScalarString = ifScalarString;
-        return res;
+    // two distinct canonical instances are never equal
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        return other instanceof Val o && !(canonical && o.canonical) && sameAs(o);
     }
 
-    public boolean equals(Object other) {
-        if (other instanceof Val o) {
-            var res = r.equals(o.r) &&
-                    t.equals(o.t);
-            res &= ifScalarNum == null ? o.ifScalarNum == null
-                    : o.ifScalarNum != null && ifScalarNum.equals(o.ifScalarNum);
-            res &= ifScalarString == null ? o.ifScalarString == null
-                    : o.ifScalarString != null && ifScalarString.equals(o.ifScalarString);
-            res &= values.size() == o.values.size();
-            if (res)
-                for (int i = 0; i < values.size(); i++)
-                    res &= values.get(i).equals(o.values.get(i));
-            return res;
-        } else
-            return false;
+    // equal fields, whether canonical or not
+    private boolean sameAs(Val o) {
+        return hash == o.hash && r.equals(o.r) && t.equals(o.t) && Objects.equals(ifScalarNum, o.ifScalarNum)
+                && Objects.equals(ifScalarString, o.ifScalarString) && Arrays.equals(ints, o.ints)
+                && values.equals(o.values);
+    }
+
+    public int hashCode() {
+        return hash * 31 + Arrays.hashCode(ints);
     }
 
     public String toString() {
@@ -295,7 +549,7 @@ class Val {
         else {
             var res = "c(";
             for (int i = 0; i < r.to; i++) {
-                res += values.get(i);
+                res += elem(i);
                 if (i < r.to - 1)
                     res += ",";
             }
@@ -305,21 +559,34 @@ class Val {
 }
 
 class Range {
-    static Range bot = new Range(0, -1);
+    static final Range bot = new Range(0, -1);
+
+    static final Range top = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
 
-    static Range top = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    private static final Range scalar = new Range(0, 1);
+
+    // the shared instances are used for bot, top and scalars
+    static Range of(int from, int to) {
+        if (from == 0 && to == 1)
+            return scalar;
+        if (from == 0 && to == -1)
+            return bot;
+        if (from == Integer.MIN_VALUE && to == Integer.MAX_VALUE)
+            return top;
+        return new Range(from, to);
+    }
 
     static Range mk() {
         return bot;
     }
 
     static Range mkScalar() {
-        return new Range(0, 1);
+        return scalar;
     }
 
-    int from, to;
+    final int from, to;
 
-    Range(int from, int to) {
+    private Range(int from, int to) {
         this.from = from;
         this.to = to;
     }
@@ -333,11 +600,27 @@ class Range {
     }
 
     Range set(int from, int to) {
-        return new Range(from, to);
+        return of(from, to);
     }
 
     static Range merge(Range l, Range r) {
-        return new Range(Math.min(l.from, r.from), Math.max(l.to, r.to));
+        return of(Math.min(l.from, r.from), Math.max(l.to, r.to));
+    }
+
+    // bounds of r that go past those of l become unbounded
+    static Range widen(Range l, Range r) {
+        if (l.isBot())
+            return r;
+        if (r.isBot())
+            return l;
+        return of(r.from < l.from ? Integer.MIN_VALUE : l.from, r.to > l.to ? Integer.MAX_VALUE : l.to);
+    }
+
+    // unbounded bounds of l are replaced by those of r
+    static Range narrow(Range l, Range r) {
+        if (l.isBot() || r.isBot())
+            return r;
+        return of(l.from == Integer.MIN_VALUE ? r.from : l.from, l.to == Integer.MAX_VALUE ? r.to : l.to);
     }
 
     int size() {
@@ -349,7 +632,7 @@ class Range {
     BOOL isScalar() {
         if (from == 0 && to == 1)
             return BOOL.Y;
-        if (this.equals(bot))
+        if (isBot())
             return BOOL.N;
         if (to == Integer.MAX_VALUE)
             return BOOL.M;
@@ -358,11 +641,11 @@ class Range {
     }
 
     public boolean isTop() {
-        return equals(top);
+        return this == top;
     }
 
     public boolean isBot() {
-        return equals(bot);
+        return this == bot;
     }
 
     public boolean leq(Range r) {
@@ -373,6 +656,10 @@ class Range {
         return o instanceof Range r && from == r.from && to == r.to;
     }
 
+    public int hashCode() {
+        return 31 * from + to;
+    }
+
     public String toString() {
         return equals(top) ? "[T]" : equals(bot) ? "[_]" : "[" + from + "," + to + "]";
     }
@@ -383,10 +670,10 @@ class Type {
         STR, NUM, BOT, TOP
     };
 
-    private static Type bot = new Type(T.BOT);
-    static Type top = new Type(T.TOP);
-    private static Type int_ = new Type(T.NUM);
-    private static Type str_ = new Type(T.STR);
+    private static final Type bot = new Type(T.BOT);
+    static final Type top = new Type(T.TOP);
+    private static final Type int_ = new Type(T.NUM);
+    private static final Type str_ = new Type(T.STR);
 
     static Type mk() {
         return bot;
@@ -400,7 +687,7 @@ class Type {
         return str_;
     }
 
-    private T type;
+    private final T type;
 
     private Type(T type) {
         this.type = type;
@@ -427,13 +714,23 @@ class Type {
     static Type merge(Type l, Type r) {
         return switch (l.type) {
             case BOT -> r;
-            case TOP -> r;
-            default -> l.type == r.type ? r : top;
+            case TOP -> l;
+            default -> r.type == T.BOT || l.type == r.type ? l : top;
         };
     }
 
+    // the lattice of types is finite, merging is enough to widen
+    static Type widen(Type l, Type r) {
+        return merge(l, r);
+    }
+
+    static Type narrow(Type l, Type r) {
+        return l.isTop() ? r : l;
+    }
+
+    // there is one instance per type
     public boolean equals(Object o) {
-        return o instanceof Type t && type == t.type;
+        return this == o;
     }
 
     public boolean leq(Type t) {
@@ -1,7 +1,14 @@
 package app;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
 import org.junit.Test;
 
 /**
@@ -17,4 +24,459 @@ public class AppTest
     {
         assertTrue( true );
     }
+
+    @Test
+    public void inPlaceStateMatchesImmutable()
+    {
+        var p = compile(new Parser("app.r").parse());
+        var immutable = new Concrete(p).execute().last();
+        var inPlace = new Concrete(p, true).execute().last();
+        assertEquals(Val.of(6), immutable);
+        assertEquals(immutable, inPlace);
+    }
+
+    @Test
+    public void flatIntVectors() throws IOException
+    {
+        var p = compile("prog\n w = c(1,2,3,4)\n n = length(w)\n w = set(w,3,9)\n r = get(w,3)\n r = add(r,n)\nend\n");
+        assertEquals(Val.of(13), new Concrete(p, true).execute().last());
+        // a vector argument is one element, whether the others are ints or not
+        var ints = compile("prog\n v = c(1,2)\n w = c(v,3)\n n = length(w)\nend\n");
+        var mixed = compile("prog\n v = c(1,2)\n w = c(v,\"a\")\n n = length(w)\nend\n");
+        assertEquals(Val.of(2), new Concrete(ints, true).execute().last());
+        assertEquals(Val.of(2), new Concrete(mixed, true).execute().last());
+    }
+
+    @Test
+    public void threadsInternToTheSameValues() throws Exception
+    {
+        var pool = java.util.concurrent.Executors.newFixedThreadPool(4);
+        try {
+            var tasks = new java.util.ArrayList<java.util.concurrent.Callable<Val[]>>();
+            for (int t = 0; t < 4; t++)
+                tasks.add(() -> {
+                    var res = new Val[1000];
+                    for (int i = 0; i < res.length; i++)
+                        res[i] = Val.merge(Val.of("s" + i), Val.of("t" + i));
+                    return res;
+                });
+            var runs = pool.invokeAll(tasks);
+            for (int i = 0; i < 1000; i++)
+                for (var r : runs)
+                    assertTrue(runs.get(0).get()[i] == r.get()[i]);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void setInPlaceKeepsAliasesIntact() throws IOException
+    {
+        var p = compile("fun f(v)\n v = set(v,0,9)\nend\nprog\n a = c(1,2,3)\n b = f(a)\n x = get(a,0)\n y = get(b,0)\n a = set(a,0,5)\n z = get(a,0)\n r = add(x,y)\n r = add(r,z)\nend\n");
+        assertEquals(Val.of(15), new Concrete(p, true).execute().last());
+        assertEquals(Val.of(15), new Concrete(p).execute().last());
+    }
+
+    @Test
+    public void registeredKernels() throws IOException
+    {
+        var p = compile("prog\n v = c(3,1,2)\n s = sort(v)\n m = max(v)\n f = get(s,0)\n r = add(m,f)\nend\n");
+        assertEquals(Val.of(4), new Concrete(p, true).execute().last());
+    }
+
+    @Test
+    public void abstractAnalysisReachesFixpoint()
+    {
+        var a = new Abstract(compile(new Parser("app.r").parse()));
+        var last = a.analyze().last();
+        assertEquals(Val.BOOL.Y, last.isNum());
+        assertEquals(Val.BOOL.Y, last.isScalar());
+        assertTrue(a.pending.isEmpty());
+    }
+
+    @Test
+    public void tracingLeavesValuesUnshared() throws IOException
+    {
+        var p = compile("prog\n v = c(1,2,3)\n v = set(v,0,5)\n v = set(v,1,6)\nend\n");
+        var c = new Concrete(p, true);
+        var mutable = new int[1];
+        try (var t = new Tracer()) {
+            c.listener = (pc, op, st) -> {
+                t.step(pc, op, st);
+                if (op instanceof Op.Call && st.canMutate(0))
+                    mutable[0]++;
+            };
+            c.execute();
+        }
+        assertEquals(3, mutable[0]);
+        assertEquals("c(5,6,3)", c.in.last().toString());
+    }
+
+    // A call in a loop whose arguments never change must still return to the
+    // caller's later states, or the loop exit looks unreachable
+    static final String callInLoop = "fun id(x)\n y = c(x)\nend\n"
+            + "prog\n i = c(3)\n a = c(1)\n while(i)\n  b = id(a)\n  k = c(i)\n  i = sub(k,1)\n end\n r = c(i)\nend\n";
+
+    @Test
+    public void callsInLoopsReturnToEveryIteration() throws IOException
+    {
+        var p = compile(callInLoop);
+        var a = new Abstract(p);
+        var last = a.analyze().last();
+        assertTrue(a.seen.get(p.mainExitPC));
+        assertEquals(Val.BOOL.Y, last.isNum());
+        assertEquals(null, last.asNum());
+        assertEquals(Val.of(0), new Concrete(p, true).execute().last());
+    }
+
+    @Test
+    public void wideningBoundsLoopAnalysis() throws IOException
+    {
+        var p = compile("prog\n v = c(1)\n k = c(100000)\n while(k)\n  v = add(v,k)\n  k = sub(k,1)\n end\n n = add(v,1)\nend\n");
+        var a = new Abstract(p);
+        var last = a.analyze().last();
+        assertEquals(1, a.loopHeads.cardinality());
+        assertEquals(Val.BOOL.Y, last.isNum());
+        assertEquals(null, last.asNum());
+    }
+
+    @Test
+    public void programsKeepTheirOwnCode() throws IOException
+    {
+        var a = compile("prog\n r = add(1,2)\nend\n");
+        var b = compile("fun f(x)\n y = sub(x,1)\nend\nprog\n r = f(10)\nend\n");
+        assertEquals(Val.of(3), new Concrete(a, true).execute().last());
+        assertEquals(Val.of(9), new Concrete(b, true).execute().last());
+    }
+
+    static CodeUnit compile(Parser.Prog p)
+    {
+        return new Compiler().compile(p);
+    }
+
+    @Test
+    public void batchRunsEveryScript() throws IOException
+    {
+        var dir = Files.createTempDirectory("batch");
+        try {
+            for (int i = 0; i < 20; i++)
+                Files.writeString(dir.resolve("s" + (i < 10 ? "0" : "") + i + ".r"), "prog\n r = add(" + i + ",1)\nend\n");
+            Files.writeString(dir.resolve("zbad.r"), "prog\n r = \nend\n");
+            // nested deep enough to overflow the stack of the recursive parser
+            var deep = "prog\n x = c(1)\n" + "if(x)\n".repeat(100_000) + "end\n".repeat(100_001);
+            Files.writeString(dir.resolve("zdeep.r"), deep);
+            var res = new Batch(4).run(Batch.scripts(dir));
+            assertEquals(22, res.size());
+            for (int i = 0; i < 20; i++)
+                assertEquals(Val.of(i + 1), res.get(i).value());
+            assertTrue(!res.get(20).ok());
+            assertTrue(res.get(21).error() instanceof StackOverflowError);
+        } finally {
+            try (var s = Files.list(dir)) {
+                for (var f : s.toList())
+                    Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void schedulerBoundsRunawayScripts() throws Exception
+    {
+        var spin = compile("prog\n g = c(1)\n while(g)\n x = add(g,1)\n end\nend\n");
+        try (var s = new Scheduler(1, 100)) {
+            var runaway = s.submit(spin, 100_000);
+            var forever = s.submit(spin, Long.MAX_VALUE);
+            var ok = s.submit(compile(new Parser("app.r").parse()), 100_000);
+            assertEquals(Val.of(6), ok.result.get());
+            forever.cancel();
+            try {
+                runaway.result.get();
+                assertTrue(false);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("quota"));
+            }
+            try {
+                forever.result.get();
+                assertTrue(false);
+            } catch (CancellationException e) {
+                assertTrue(forever.result.isCancelled());
+            }
+        }
+        // closing cancels the task in its slice and any later submit
+        var s = new Scheduler(1, 100);
+        var running = s.submit(spin, Long.MAX_VALUE);
+        s.close();
+        try {
+            running.result.get(10, java.util.concurrent.TimeUnit.SECONDS);
+            assertTrue(false);
+        } catch (CancellationException e) {
+            assertTrue(running.result.isCancelled());
+        }
+        assertTrue(s.submit(spin, 100).result.isCancelled());
+        try (var s2 = new Scheduler(1, 100)) {
+            var viaFuture = s2.submit(spin, Long.MAX_VALUE);
+            viaFuture.result.cancel(false); // the engine stops taking slices
+            assertEquals(Val.of(6), s2.submit(compile(new Parser("app.r").parse()), 100_000).result.get());
+            try {
+                s2.submit(spin, -1);
+                assertTrue(false);
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("quota"));
+            }
+        }
+    }
+
+    @Test
+    public void cachedImageRunsWithoutParsing() throws IOException
+    {
+        var code = compile(new Parser("app.r").parse());
+        var img = CodeCache.encode(code);
+        var back = CodeCache.decode(java.nio.ByteBuffer.wrap(img));
+        assertEquals(code.length(), back.length());
+        for (int pc = 0; pc < code.length(); pc++) {
+            assertEquals(code.get(pc).toString(), back.get(pc).toString());
+            assertEquals(code.line(pc), back.line(pc));
+        }
+        assertEquals(Val.of(6), new Concrete(back, true).execute().last());
+        assertArrayEquals(img, CodeCache.encode(back));
+        var huge = img.clone(); // a pool count past the end is not allocated
+        java.nio.ByteBuffer.wrap(huge).putInt(8, Integer.MAX_VALUE - 8);
+        assertEquals(null, CodeCache.decode(java.nio.ByteBuffer.wrap(huge)));
+        // a damaged image is a miss, recompiled and written again
+        var dir = Files.createTempDirectory("rhotic");
+        var cache = new CodeCache(dir);
+        var script = java.nio.file.Path.of("app.r");
+        var file = dir.resolve(CodeCache.key(Files.readAllBytes(script)) + ".rbc");
+        try {
+            cache.load(script);
+            Files.write(file, java.util.Arrays.copyOf(img, img.length / 2));
+            assertEquals(Val.of(6), new Concrete(cache.load(script), true).execute().last());
+            assertArrayEquals(img, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void lexerTracksKindsAndLines()
+    {
+        var lx = Lexer.of("# comment\nprog\n  x = c(12, \"a b\")\n  y\\:z = x\nend\n");
+        assertEquals(13, lx.count());
+        assertTrue(lx.is(0, "prog"));
+        assertEquals(Lexer.NUM, lx.kind(5));
+        assertEquals(Lexer.STR, lx.kind(7));
+        assertEquals("a b", lx.text(7));
+        assertEquals("y\\:z", lx.text(9));
+        assertEquals(3, lx.line(lx.offset(9)));
+        assertEquals("  y\\:z = x", lx.lineText(3));
+        var big = new StringBuilder("prog\n");
+        for (int i = 0; i < 200_000; i++)
+            big.append(" x").append(i).append(" = add(x, ").append(i).append(")\n");
+        lx = Lexer.of(big.append("end\n").toString());
+        assertEquals(2 + 200_000 * 8, lx.count());
+        assertEquals(200_000, lx.line(lx.offset(lx.count() - 2)));
+    }
+
+    @Test
+    public void predictiveParserBuildsTheSameProgram() throws IOException
+    {
+        var src = new StringBuilder(Files.readString(java.nio.file.Path.of("app.r")));
+        src.insert(0, "fun f(a, b,)\n if(a)\n a = c(\"x, y\", 2,)\n end\n r = g()\nend\nfun g()\nend\n");
+        var slow = new Parser(Lexer.of(src.toString())).parse();
+        var fast = new Predictive(Lexer.of(src.toString())).parse();
+        var a = compile(slow);
+        var b = compile(fast);
+        assertEquals(a.length(), b.length());
+        for (int pc = 0; pc < a.length(); pc++) {
+            assertEquals(a.get(pc).toString(), b.get(pc).toString());
+            assertEquals(a.line(pc), b.line(pc));
+        }
+        try {
+            new Predictive(Lexer.of("prog\n x = c(1\nend\n")).parse();
+            assertTrue(false);
+        } catch (Parser.ParseError e) {
+            assertTrue(e.getMessage().contains("line 3"));
+        }
+    }
+
+    @Test
+    public void parallelCompileLinksLikeSequential() throws IOException
+    {
+        var src = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+            src.append("fun f" + i + "(v)\n g = c(v)\n while(g)\n if(g)\n v = f" + (i + 1) + "(v)\n end\n g = sub(g,g)\n end\n v = c(v)\nend\n");
+        src.append("fun f500(v)\n v = add(v,1)\nend\nprog\n r = f0(1)\nend\n");
+        var lx = Lexer.of(src.toString());
+        assertEquals(501, Predictive.split(lx).length - 1);
+        var seq = compile(new Predictive(lx).parse());
+        var par = new Compiler().compile(lx);
+        assertEquals(seq.length(), par.length());
+        for (int pc = 0; pc < seq.length(); pc++)
+            assertEquals(seq.get(pc).toString(), par.get(pc).toString());
+        assertEquals(Val.of(2), new Concrete(par, true).execute().last());
+    }
+
+    @Test
+    public void compilesManyVariablesInLinearTime() throws IOException
+    {
+        var src = new StringBuilder("fun f(a, a)\n a = c(a)\nend\nprog\n x0 = c(0)\n");
+        for (int i = 1; i < 100_000; i++)
+            src.append(" x" + i + " = add(x" + (i - 1) + ",1)\n");
+        src.append(" r = f(x99999, 7)\nend\n");
+        var code = new Compiler().compile(Lexer.of(src.toString()));
+        assertEquals(100_001, code.frameSize(code.mainEntryPC));
+        assertEquals(Val.of(99999), new Concrete(code, true).execute().last());
+    }
+
+    @Test
+    public void bytecodeMatchesConcrete() throws IOException
+    {
+        var app = compile(new Parser("app.r").parse());
+        assertEquals(Val.of(6), new Bytecode(app).execute());
+        var p = compile("fun f(v, i)\n v = set(v, i, 7)\n s = sort(v)\n m = max(s)\n v = c(v, m, \"x\")\nend\n"
+                + "prog\n v = c(3,1,2)\n n = length(v)\n while(n)\n n = sub(n,1)\n w = f(v,n)\n v = set(v,n,n)\n end\n r = c(w,v)\nend\n");
+        var expected = new Concrete(p, true).execute().last();
+        assertEquals(expected.toString(), new Bytecode(p).execute().toString());
+        assertEquals(expected, new Bytecode(p).execute());
+        try { // z would otherwise read the first constant of the pool
+            compile("prog\n x = c(7)\n y = add(z,1)\nend\n");
+            assertTrue(false);
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("undefined variable z"));
+        }
+    }
+
+    @Test
+    public void userFunctionsHideRegisteredBuiltins() throws IOException
+    {
+        var src = "fun max(a, b)\n m = c(a)\nend\nprog\n v = c(1,5)\n r = max(v, 2)\n r = length(r)\nend\n";
+        assertEquals(Val.of(2), new Concrete(compile(src), true).execute().last());
+        assertEquals(Val.of(2), new Concrete(new Compiler().compile(Lexer.of(src)), true).execute().last());
+    }
+
+    // Allocation benchmark: once warm, a loop of branches, jumps, calls and
+    // arithmetic on small ints must not allocate per instruction.
+    @Test
+    public void concreteStepsDoNotAllocate() throws IOException
+    {
+        var p = compile("fun dec(n)\n n = sub(n,1)\nend\nprog\n n = c(1000)\n while(n)\n n = dec(n)\n m = add(n,5)\n end\nend\n");
+        var mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        var tid = Thread.currentThread().getId();
+        long bytes = 0;
+        for (int i = 0; i < 200; i++) { // warm up, keep the last run
+            var c = new Concrete(p, true);
+            var before = mx.getThreadAllocatedBytes(tid);
+            c.execute();
+            bytes = mx.getThreadAllocatedBytes(tid) - before;
+        }
+        var steps = 7 * 1000;
+        assertTrue(bytes + " bytes for " + steps + " steps", bytes < steps);
+    }
+
+    @Test
+    public void superinstructionsCutDispatches() throws IOException
+    {
+        var src = "fun f(n)\n s = c(0)\n while(n)\n i = c(n)\n while(i)\n s = add(s,1)\n i = sub(i,1)\n end\n"
+                + " if(s)\n s = add(s,0)\n end\n n = sub(n,1)\n end\n s = c(s)\nend\nprog\n r = f(20)\nend\n";
+        var plain = new Compiler();
+        plain.peephole = false;
+        var slow = plain.compile(parse(src));
+        var fast = compile(parse(src));
+        assertTrue(fast.length() < slow.length());
+        var steps = new int[2];
+        var a = new Concrete(slow, true);
+        a.listener = (pc, op, st) -> steps[0]++;
+        var b = new Concrete(fast, true);
+        b.listener = (pc, op, st) -> steps[1]++;
+        assertEquals(Val.of(210), a.execute().last());
+        assertEquals(Val.of(210), b.execute().last());
+        assertTrue(steps[0] + " vs " + steps[1], steps[1] * 4 < steps[0] * 3);
+        assertEquals(Val.of(210), new Bytecode(fast).execute());
+        var back = CodeCache.decode(java.nio.ByteBuffer.wrap(CodeCache.encode(fast)));
+        assertEquals(Val.of(210), new Concrete(back, true).execute().last());
+        assertEquals(new Abstract(slow).analyze().last(), new Abstract(fast).analyze().last());
+    }
+
+    @Test
+    public void specializesProvenIntOps() throws IOException
+    {
+        var code = compile(new Parser("app.r").parse());
+        var fast = Specializer.specialize(code);
+        var ints = 0;
+        for (int pc = 0; pc < fast.length(); pc++) {
+            var op = fast.get(pc);
+            if (op instanceof Op.IntAddOp || op instanceof Op.IntSubOp || op instanceof Op.IntBranch
+                    || op instanceof Op.ArithBranch ab && ab.ints)
+                ints++;
+        }
+        assertTrue(ints >= 4);
+        assertEquals(Val.of(6), new Concrete(fast, true).execute().last());
+        assertEquals(Val.of(6), new Bytecode(fast).execute());
+        assertEquals(new Abstract(code).analyze().last(), new Abstract(fast).analyze().last());
+        // the guard is a string, so the branch stays general
+        var mixed = Specializer.specialize(compile("prog\n s = c(\"a\")\n if(s)\n s = c(1)\n end\n r = add(s,0)\nend\n"));
+        var branches = 0;
+        for (int pc = 0; pc < mixed.length(); pc++)
+            if (mixed.get(pc) instanceof Op.Branch b && !(b instanceof Op.IntBranch))
+                branches++;
+        assertEquals(1, branches);
+        assertEquals(Val.of(1), new Concrete(mixed, true).execute().last());
+    }
+
+    @Test
+    public void optimisedCallsInLoopsKeepTheirResults() throws IOException
+    {
+        // s is a string from the second iteration on, after the call
+        var mixed = compile("fun id(x)\n y = c(x)\nend\nprog\n i = c(2)\n a = c(1)\n s = c(1)\n while(i)\n"
+                + "  b = id(a)\n  if(s)\n   r = c(5)\n  end\n  s = c(\"a\")\n  i = sub(i,1)\n end\nend\n");
+        for (var code : new CodeUnit[] { compile(callInLoop), mixed }) {
+            for (var p : new CodeUnit[] { Folder.fold(code), Specializer.specialize(code),
+                    Specializer.specialize(Folder.fold(code)) }) {
+                assertEquals(Val.of(0), new Concrete(p, true).execute().last());
+                assertEquals(Val.of(0), new Bytecode(p).execute());
+            }
+        }
+    }
+
+    @Test
+    public void foldsConstantsAndDecidedBranches() throws IOException
+    {
+        var code = compile("fun f(a)\n b = c(0)\n if(b)\n  a = c(\"never\")\n end\n a = add(a,1)\nend\n"
+                + "fun g(v)\n w = f(v)\nend\n"
+                + "prog\n x = c(1)\n k = sub(x,1)\n if(k)\n  x = c(9)\n end\n y = g(x)\n"
+                + " n = c(3)\n while(n)\n  n = sub(n,1)\n end\n r = add(y,n)\nend\n");
+        var folded = Folder.fold(code);
+        assertTrue(folded.length() < code.length());
+        for (int pc = 0; pc < folded.length(); pc++) {
+            var op = folded.get(pc);
+            assertTrue(op.toString(), !(op instanceof Op.Branch || op instanceof Op.Jump));
+            assertTrue(op.toString(), !op.toString().contains("never") && !op.toString().contains("9"));
+            if (op instanceof Op.Call c && !c.isbuiltin()) // f(v) and g(x) get the constant 1
+                assertEquals(-1, c.regs[0]);
+        }
+        assertEquals(Val.of(2), new Concrete(code, true).execute().last());
+        assertEquals(Val.of(2), new Concrete(folded, true).execute().last());
+        assertEquals(Val.of(2), new Bytecode(folded).execute());
+        var back = CodeCache.decode(java.nio.ByteBuffer.wrap(CodeCache.encode(folded)));
+        assertEquals(Val.of(2), new Concrete(back, true).execute().last());
+        assertEquals(Val.of(2), new Concrete(Specializer.specialize(folded), true).execute().last());
+    }
+
+    static CodeUnit compile(String src) throws IOException
+    {
+        return compile(parse(src));
+    }
+
+    static Parser.Prog parse(String src) throws IOException
+    {
+        var f = Files.createTempFile("rhotic", ".r");
+        Files.writeString(f, src);
+        try {
+            return new Parser(f.toString()).parse();
+        } finally {
+            Files.delete(f);
+        }
+    }
 }